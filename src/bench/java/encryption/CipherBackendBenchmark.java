@@ -0,0 +1,55 @@
+package encryption;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Compares the pure-Java and the javax.crypto cipher backends, both on raw blocks
+    and through AES.encrypt on index-sized tokens.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CipherBackendBenchmark {
+
+    @Param({"java", "jca"})
+    private String backend;
+
+    private CipherBackend.BlockCipher cipher;
+    private AES aes;
+    private byte[] block;
+    private String token;
+
+    @Setup
+    public void setup() {
+        CipherBackend cipherBackend = backend.equals("jca") ? new JcaCipherBackend() : new JavaCipherBackend();
+        byte[] key = new byte[16];
+        new Random(42).nextBytes(key);
+        cipher = cipherBackend.init(key);
+        aes = new AES(key, cipherBackend);
+        block = new byte[16];
+        token = "encryption";
+    }
+
+    @Benchmark
+    public byte[] encryptBlock() {
+        cipher.encryptBlock(block, 0, block, 0);
+        return block;
+    }
+
+    @Benchmark
+    public byte[] decryptBlock() {
+        cipher.decryptBlock(block, 0, block, 0);
+        return block;
+    }
+
+    @Benchmark
+    public String encryptToken() {
+        return aes.encrypt(token);
+    }
+}
@@ -0,0 +1,117 @@
+package search;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Compares n-gram analysis with the regex split it replaced, on a document-sized text and a short query.
+    Both collect the terms of the document the way indexing does, the regex path splits the tokens of an analyzer without n-grams.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NgramGeneratorBenchmark {
+
+    @Param({"3", "4"})
+    private int n;
+
+    private String document;
+    private String query;
+    private Analyzer chunks;
+    private Analyzer slidingWindows;
+    private Analyzer words;
+
+    @Setup
+    public void setup() {
+        // a Zipf-like vocabulary, as in natural text: few frequent short words, many rare long ones
+        Random random = new Random(42);
+        String[] vocabulary = new String[2000];
+        for (int i = 0; i < vocabulary.length; i++) {
+            char[] word = new char[3 + random.nextInt(3 + i % 10)];
+            for (int j = 0; j < word.length; j++) {
+                word[j] = (char) ('a' + random.nextInt(26));
+            }
+            vocabulary[i] = new String(word);
+        }
+        StringBuilder text = new StringBuilder();
+        for (int position = 1; position <= 5000; position++) {
+            text.append(vocabulary[(int) Math.pow(vocabulary.length, random.nextDouble()) - 1]).append(position % 12 == 0 ? '\n' : ' ');
+        }
+        document = text.toString();
+        query = String.join(" ", vocabulary[0], vocabulary[100], vocabulary[1000], vocabulary[1999]);
+        chunks = Analyzer.builder().ngrams(n).build();
+        slidingWindows = Analyzer.builder().ngrams(n, true).build();
+        words = Analyzer.builder().build();
+    }
+
+    @Benchmark
+    public Map<String, PostingList> chunks() throws IOException {
+        return analyze(chunks);
+    }
+
+    @Benchmark
+    public Map<String, PostingList> slidingWindows() throws IOException {
+        return analyze(slidingWindows);
+    }
+
+    @Benchmark
+    public Map<String, PostingList> regexChunks() throws IOException {
+        TermTable terms = new TermTable();
+        TokenStream stream = words.tokenStream(new StringReader(document));
+        int position = 0;
+        while (stream.incrementToken()) {
+            position += stream.positionIncrement();
+            String token = stream.term();
+            int ngram_length = Math.min(n, token.length());
+            for (String s : token.split("(?<=\\G" + String.join("", Collections.nCopies(ngram_length, ".")) + ")")) {
+                if (s.length() > 1) {
+                    terms.add(s.toCharArray(), s.length(), position);
+                }
+            }
+        }
+        stream.end();
+        return terms.build();
+    }
+
+    @Benchmark
+    public List<String> queryChunks() {
+        return QueryProcessor.processQuery(query, chunks);
+    }
+
+    @Benchmark
+    public List<String> regexQueryChunks() throws IOException {
+        List<String> ngrams = new ArrayList<>();
+        TokenStream stream = words.queryTokenStream(query);
+        while (stream.incrementToken()) {
+            String token = stream.term();
+            int ngram_length = Math.min(n, token.length());
+            for (String s : token.split("(?<=\\G" + String.join("", Collections.nCopies(ngram_length, ".")) + ")")) {
+                if (s.length() > 1) {
+                    ngrams.add(s);
+                }
+            }
+        }
+        stream.end();
+        return ngrams;
+    }
+
+    // The terms of the document and their positions, as indexing collects them
+    private Map<String, PostingList> analyze(Analyzer analyzer) throws IOException {
+        TermTable terms = new TermTable();
+        TokenStream stream = analyzer.tokenStream(new StringReader(document));
+        int position = 0;
+        while (stream.incrementToken()) {
+            position += stream.positionIncrement();
+            terms.add(stream.buffer(), stream.length(), position);
+        }
+        stream.end();
+        return terms.build();
+    }
+}
@@ -1,35 +1,56 @@
 package encryption;
 
+import javax.crypto.AEADBadTagException;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
 public class AES {
 
-    private final int rounds;
-    private final byte[][] keys;
+    private static final Set<String> verifiedBackends = ConcurrentHashMap.newKeySet();
+
+    private static final int BLOCK_SIZE = 16;
+    private static final int CHUNK_SIZE = 64 * 1024; // bytes read and encrypted at a time by the streaming methods, a multiple of BLOCK_SIZE
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    // ASCII characters can be copied straight into a block only if the default charset encodes them as themselves
+    private static final boolean ASCII_DEFAULT_CHARSET = isAsciiCompatible(Charset.defaultCharset());
+
+    private final CipherBackend.BlockCipher engine;
+    private final CtrMode ctr;
 
     private final Logger logger = Logger.getLogger(getClass().getName());
 
     public AES(byte[] key) {
-        switch (key.length) {
-            case 16:
-                rounds = 10;
-                break;
-            case 24:
-                rounds = 12;
-                break;
-            case 32:
-                rounds = 14;
-                break;
-            default:
-                throw new IllegalArgumentException("Unsupported key size: " + key.length);
+        this(key, new JavaCipherBackend());
+    }
+
+    /**
+     Creates an AES instance that encrypts blocks with the given backend.
+     The backend's self-test runs the first time the backend is used.
+     @param key the secret key, 16, 24 or 32 bytes long
+     @param backend the block cipher implementation to use
+     */
+    public AES(byte[] key, CipherBackend backend) {
+        if (!verifiedBackends.contains(backend.getName())) {
+            backend.selfTest();
+            verifiedBackends.add(backend.getName());
+            logger.info("Cipher backend " + backend.getName() + " passed the self-test!");
         }
-        keys = KeySchedule.keyExpansion(rounds + 1, key);
+        engine = backend.init(key);
+        ctr = new CtrMode(engine);
     }
 
     /**
@@ -39,14 +60,7 @@ public class AES {
      */
     public String encrypt(String plainText) {
         try {
-            List<String> strings = splitStringIntoBlocks(plainText, 16);
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            for (String s : strings) {
-                byte[] encryptedMessage = encryptBlock(stringToBlock16(s));
-                outputStream.write(encryptedMessage);
-            }
-            byte[] encryptedData = outputStream.toByteArray();
-            return Base64.getEncoder().encodeToString(encryptedData);
+            return Base64.getEncoder().encodeToString(encryptToBytes(plainText));
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -54,16 +68,74 @@ public class AES {
     }
 
     /**
-     Reads the content of the given file, encrypts it using CBC (Cipher Block Chaining) mode with the specified key and returns the encrypted data
+     Encrypts the given plain text like {@link #encrypt(String)}, but returns the raw cipher text instead of its Base64 form.
+     @param plainText the plain text to be encrypted
+     @return the encrypted blocks
+     */
+    public byte[] encryptToBytes(String plainText) {
+        byte[] encryptedData = new byte[(plainText.length() + 15) / 16 * 16];
+        fillBlocks(plainText, encryptedData);
+        for (int offset = 0; offset < encryptedData.length; offset += 16) {
+            engine.encryptBlock(encryptedData, offset, encryptedData, offset);
+        }
+        return encryptedData;
+    }
+
+    /**
+     Encrypts many short texts like {@link #encryptAll(Collection)}, but returns the raw cipher texts.
+     Every text is encrypted in place in its result array, so nothing else is allocated.
+     @param plainTexts the texts to encrypt
+     @return the encryption of every text, in iteration order
+     */
+    public List<byte[]> encryptAllToBytes(Collection<String> plainTexts) {
+        List<byte[]> encrypted = new ArrayList<>(plainTexts.size());
+        for (String plainText : plainTexts) {
+            encrypted.add(encryptToBytes(plainText));
+        }
+        return encrypted;
+    }
+
+    /**
+     Encrypts many short texts, such as the terms of a document, in one pass.
+     Gives the same results as calling {@link #encrypt(String)} on every text, but reuses one block buffer and
+     one Base64 buffer for the whole batch, so the only allocations are the returned strings.
+     @param plainTexts the texts to encrypt
+     @return the Base64-encoded encryption of every text, in iteration order
+     */
+    public List<String> encryptAll(Collection<String> plainTexts) {
+        List<String> encrypted = new ArrayList<>(plainTexts.size());
+        byte[] blocks = new byte[64];
+        char[] base64 = new char[88];
+        for (String plainText : plainTexts) {
+            int length = (plainText.length() + 15) / 16 * 16;
+            if (length > blocks.length) {
+                blocks = new byte[length];
+                base64 = new char[(length + 2) / 3 * 4];
+            }
+            fillBlocks(plainText, blocks);
+            for (int offset = 0; offset < length; offset += 16) {
+                engine.encryptBlock(blocks, offset, blocks, offset);
+            }
+            encrypted.add(new String(base64, 0, encodeBase64(blocks, length, base64)));
+        }
+        return encrypted;
+    }
+
+    /**
+     Reads the content of the given file, encrypts it using CBC (Cipher Block Chaining) mode with the specified key and returns the encrypted data.
+     The file is streamed in CHUNK_SIZE chunks, so only the Base64 result is held in memory. The last block is padded with zeroes,
+     so for an ASCII file the result is the same as encrypting its content with {@link #encrypt(String)}.
      @param file the file to encrypt
      @return the encrypted data as a Base64-encoded string, or null if an error occurred during encryption
      */
     public String encryptFile(File file) {
-        try {
-            byte[] data = Files.readAllBytes(file.toPath());
-            String plaintext = new String(data, StandardCharsets.UTF_8);
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            try (OutputStream out = Base64.getEncoder().wrap(encrypted)) {
+                encrypt(in, out, false);
+            }
             logger.info("File with name: " + file.getName() + " encrypted successfully!");
-            return encrypt(plaintext);
+            return encrypted.toString(StandardCharsets.ISO_8859_1);
         } catch (IOException e) {
             logger.info("File with name: " + file.getName() + " encrypted unsuccessfully!");
             e.printStackTrace();
@@ -79,103 +151,333 @@ public class AES {
     public String decrypt(String encryptedText) {
         try {
             byte[] encryptedData = Base64.getDecoder().decode(encryptedText.replaceAll("\\s", "").getBytes(StandardCharsets.UTF_8));
-            List<byte[]> blocks = splitByteArrayIntoBlocks(encryptedData, 16);
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            for (byte[] block : blocks) {
-                byte[] decryptedMessage = decryptBlock(block);
-                outputStream.write(decryptedMessage);
+            if (encryptedData.length % 16 != 0) {
+                throw new IllegalArgumentException("Encrypted data is not a multiple of the block size: " + encryptedData.length);
             }
-            return new String(outputStream.toByteArray(), StandardCharsets.UTF_8).trim();
+            for (int offset = 0; offset < encryptedData.length; offset += 16) {
+                engine.decryptBlock(encryptedData, offset, encryptedData, offset);
+            }
+            return new String(encryptedData, StandardCharsets.UTF_8).trim();
         } catch (Exception e) {
             e.printStackTrace();
             return null;
         }
     }
 
-    /*
-        Splits a byte array into blocks of a specified block size.
+    /**
+     Decrypts raw cipher text as returned by {@link #encryptToBytes(String)}.
+     @param encryptedData the encrypted blocks; the array is not changed
+     @return the decrypted text, or null if there was an error during decryption
      */
-    public static List<byte[]> splitByteArrayIntoBlocks(byte[] data, int blockSize) {
-        List<byte[]> blocks = new ArrayList<>();
-        int numBlocks = (int) Math.ceil((double) data.length / blockSize);
-        for (int i = 0; i < numBlocks; i++) {
-            int offset = i * blockSize;
-            int length = Math.min(blockSize, data.length - offset);
-            byte[] block = new byte[length];
-            System.arraycopy(data, offset, block, 0, length);
-            blocks.add(block);
+    public String decrypt(byte[] encryptedData) {
+        try {
+            if (encryptedData.length % 16 != 0) {
+                throw new IllegalArgumentException("Encrypted data is not a multiple of the block size: " + encryptedData.length);
+            }
+            byte[] decryptedData = new byte[encryptedData.length];
+            for (int offset = 0; offset < encryptedData.length; offset += 16) {
+                engine.decryptBlock(encryptedData, offset, decryptedData, offset);
+            }
+            return new String(decryptedData, StandardCharsets.UTF_8).trim();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
         }
-        return blocks;
+    }
+
+    /**
+     Encrypts a stream of any length in constant memory, CHUNK_SIZE bytes at a time.
+     The data is split into 16 byte blocks and padded as in PKCS#7: 1 to 16 bytes are appended, each holding their count,
+     so {@link #decrypt(InputStream, OutputStream)} gives back exactly the bytes that went in, whatever they are.
+     @param in the plain data; the stream is not closed
+     @param out receives the raw encrypted blocks; the stream is not closed
+     @throws IOException if reading or writing fails
+     */
+    public void encrypt(InputStream in, OutputStream out) throws IOException {
+        encrypt(in, out, true);
+    }
+
+    // Encrypts the stream with PKCS#7 padding, or with the zero padding of encrypt(String)
+    private void encrypt(InputStream in, OutputStream out, boolean pkcs7) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int length;
+        do {
+            length = in.readNBytes(chunk, 0, CHUNK_SIZE);
+            out.write(chunk, 0, encryptChunk(chunk, length, pkcs7));
+        } while (length == CHUNK_SIZE);
+    }
+
+    /**
+     Decrypts a stream written by {@link #encrypt(InputStream, OutputStream)} in constant memory and removes the padding.
+     @param in the raw encrypted blocks; the stream is not closed
+     @param out receives the plain data; the stream is not closed
+     @throws IOException if reading or writing fails, or the encrypted data is not a whole number of blocks or is not padded correctly
+     */
+    public void decrypt(InputStream in, OutputStream out) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        byte[] last = new byte[BLOCK_SIZE]; // held back until it is known whether it is the final, padded block
+        boolean pending = false;
+        int length;
+        do {
+            length = in.readNBytes(chunk, 0, CHUNK_SIZE);
+            if (length == 0) {
+                break;
+            }
+            decryptChunk(chunk, length);
+            if (pending) {
+                out.write(last);
+            }
+            out.write(chunk, 0, length - BLOCK_SIZE);
+            System.arraycopy(chunk, length - BLOCK_SIZE, last, 0, BLOCK_SIZE);
+            pending = true;
+        } while (length == CHUNK_SIZE);
+        if (!pending) {
+            throw new IOException("Encrypted data is empty, it must end with a padded block");
+        }
+        out.write(last, 0, getUnpaddedLength(last));
+    }
+
+    /**
+     Channel version of {@link #encrypt(InputStream, OutputStream)}. The chunk is read, encrypted and written in place
+     through a heap buffer that wraps it. The channels must be blocking.
+     @param in the plain data; the channel is not closed
+     @param out receives the raw encrypted blocks; the channel is not closed
+     @throws IOException if reading or writing fails
+     */
+    public void encrypt(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        int length;
+        do {
+            length = readFully(in, buffer);
+            int encrypted = encryptChunk(chunk, length, true);
+            buffer.position(0).limit(encrypted);
+            writeFully(out, buffer);
+        } while (length == CHUNK_SIZE);
+    }
+
+    /**
+     Channel version of {@link #decrypt(InputStream, OutputStream)}. The channels must be blocking.
+     @param in the raw encrypted blocks; the channel is not closed
+     @param out receives the plain data; the channel is not closed
+     @throws IOException if reading or writing fails, or the encrypted data is not a whole number of blocks or is not padded correctly
+     */
+    public void decrypt(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        byte[] last = new byte[BLOCK_SIZE];
+        ByteBuffer last_buffer = ByteBuffer.wrap(last);
+        boolean pending = false;
+        int length;
+        do {
+            length = readFully(in, buffer);
+            if (length == 0) {
+                break;
+            }
+            decryptChunk(chunk, length);
+            if (pending) {
+                last_buffer.clear();
+                writeFully(out, last_buffer);
+            }
+            buffer.position(0).limit(length - BLOCK_SIZE);
+            writeFully(out, buffer);
+            System.arraycopy(chunk, length - BLOCK_SIZE, last, 0, BLOCK_SIZE);
+            pending = true;
+        } while (length == CHUNK_SIZE);
+        if (!pending) {
+            throw new IOException("Encrypted data is empty, it must end with a padded block");
+        }
+        last_buffer.clear().limit(getUnpaddedLength(last));
+        writeFully(out, last_buffer);
+    }
+
+    /**
+     Encrypts a document payload in authenticated counter mode, spreading large payloads over the common ForkJoinPool.
+     Every call uses a fresh random nonce. The result is the nonce, the cipher text and a 16 byte tag.
+     @param plainText the payload
+     @return the sealed payload, 28 bytes longer than the plain text
+     @see #encryptPayload(byte[], ForkJoinPool)
+     */
+    public byte[] encryptPayload(byte[] plainText) {
+        return encryptPayload(plainText, ForkJoinPool.commonPool());
+    }
+
+    /**
+     Encrypts a document payload in authenticated counter mode.
+     Payloads of 256 KiB and more are split into 64 KiB chunks that are encrypted and authenticated on the given pool;
+     the output is the same as when a single thread does all the work.
+     @param plainText the payload
+     @param pool the pool to run on, or null to encrypt on the calling thread
+     @return the sealed payload, 28 bytes longer than the plain text
+     */
+    public byte[] encryptPayload(byte[] plainText, ForkJoinPool pool) {
+        return ctr.seal(plainText, pool);
+    }
+
+    /**
+     Decrypts a payload sealed by {@link #encryptPayload(byte[])}, on the common ForkJoinPool if it is large.
+     @param sealed the sealed payload
+     @return the plain text
+     @throws AEADBadTagException if the payload was not sealed with this key or has been modified
+     */
+    public byte[] decryptPayload(byte[] sealed) throws AEADBadTagException {
+        return decryptPayload(sealed, ForkJoinPool.commonPool());
+    }
+
+    /**
+     Decrypts a payload sealed by {@link #encryptPayload(byte[], ForkJoinPool)}.
+     @param sealed the sealed payload
+     @param pool the pool to run on, or null to decrypt on the calling thread
+     @return the plain text
+     @throws AEADBadTagException if the payload was not sealed with this key or has been modified
+     */
+    public byte[] decryptPayload(byte[] sealed, ForkJoinPool pool) throws AEADBadTagException {
+        return ctr.open(sealed, pool);
     }
 
     /*
-        The encryptBlock method encrypts each 16-byte block.
+        Encrypts the first length bytes of the chunk in place and returns the number of encrypted bytes.
+        A chunk shorter than CHUNK_SIZE is the last one: with PKCS#7 it gets 1 to 16 bytes of padding,
+        otherwise a trailing partial block is padded with zeroes.
      */
-    private byte[] encryptBlock(byte[] block) {
-        AesEncryption aesEncryption = new AesEncryption();
-        byte[] state = block;
-        byte[] round_key = keys[0];
+    private int encryptChunk(byte[] chunk, int length, boolean pkcs7) {
+        int padded;
+        if (pkcs7 && length < CHUNK_SIZE) {
+            padded = (length / BLOCK_SIZE + 1) * BLOCK_SIZE;
+            Arrays.fill(chunk, length, padded, (byte) (padded - length));
+        } else {
+            padded = (length + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+            Arrays.fill(chunk, length, padded, (byte) 0);
+        }
+        for (int offset = 0; offset < padded; offset += BLOCK_SIZE) {
+            engine.encryptBlock(chunk, offset, chunk, offset);
+        }
+        return padded;
+    }
+
+    // Decrypts the first length bytes of the chunk in place
+    private void decryptChunk(byte[] chunk, int length) throws IOException {
+        if (length % BLOCK_SIZE != 0) {
+            throw new IOException("Encrypted data is not a multiple of the block size");
+        }
+        for (int offset = 0; offset < length; offset += BLOCK_SIZE) {
+            engine.decryptBlock(chunk, offset, chunk, offset);
+        }
+    }
+
+    // Length of the final block without its PKCS#7 padding
+    private static int getUnpaddedLength(byte[] block) throws IOException {
+        int padding = block[BLOCK_SIZE - 1] & 0xff;
+        if (padding < 1 || padding > BLOCK_SIZE) {
+            throw new IOException("Invalid padding");
+        }
+        for (int i = BLOCK_SIZE - padding; i < BLOCK_SIZE; i++) {
+            if (block[i] != padding) {
+                throw new IOException("Invalid padding");
+            }
+        }
+        return BLOCK_SIZE - padding;
+    }
+
+    // Reads until the buffer is full or the channel ends, then flips the buffer and returns the number of bytes read
+    private static int readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining() && in.read(buffer) >= 0) {
+            // keep reading
+        }
+        buffer.flip();
+        return buffer.remaining();
+    }
 
-        state = aesEncryption.addRoundKey(state, round_key);
-        for(int i = 0; i < rounds; i++) {
-            state = aesEncryption.subBytes(state);
-            state = aesEncryption.shiftRows(state);
-            state = aesEncryption.mixColumns(state);
-            round_key = keys[i+1];
-            state = aesEncryption.addRoundKey(state, round_key);
+    private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
         }
-        state = aesEncryption.subBytes(state);
-        state = aesEncryption.shiftRows(state);
-        state = aesEncryption.addRoundKey(state, keys[keys.length - 1]);
-        return state;
     }
 
     /*
-        The decryptBlock method decrypts each 16-byte block.
+        Writes the zero-padded plain text blocks of the string to the start of the buffer, 16 characters per block,
+        the way encrypt has always laid them out. Blocks of ASCII characters are copied directly,
+        any other block goes through the default charset.
      */
-    private byte[] decryptBlock(byte[] block) {
-        AesDecryption aesDecryption = new AesDecryption();
-        byte[] state = block;
-        byte[] round_key = keys[keys.length - 1];
+    private void fillBlocks(String plainText, byte[] buffer) {
+        int length = plainText.length();
+        byte[] block = null;
+        for (int start = 0; start < length; start += 16) {
+            int end = Math.min(start + 16, length);
+            boolean ascii = ASCII_DEFAULT_CHARSET;
+            for (int i = start; i < end && ascii; i++) {
+                ascii = plainText.charAt(i) < 0x80;
+            }
+            if (ascii) {
+                for (int i = start; i < end; i++) {
+                    buffer[i] = (byte) plainText.charAt(i);
+                }
+                Arrays.fill(buffer, end, start + 16, (byte) 0);
+            } else {
+                if (block == null) {
+                    block = new byte[16];
+                }
+                stringToBlock16(plainText.substring(start, end), block);
+                System.arraycopy(block, 0, buffer, start, 16);
+            }
+        }
+    }
 
-        state = aesDecryption.addRoundKey(state, round_key);
-        state = aesDecryption.invShiftRows(state);
-        state = aesDecryption.invSubBytes(state);
+    private static boolean isAsciiCompatible(Charset charset) {
+        byte[] ascii = new byte[128];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (byte) i;
+        }
+        return Arrays.equals(new String(ascii, StandardCharsets.US_ASCII).getBytes(charset), ascii);
+    }
 
-        for(int i = rounds; i > 0; i--) {
-            round_key = keys[i];
-            state = aesDecryption.addRoundKey(state, round_key);
-            state = aesDecryption.invMixColumns(state);
-            state = aesDecryption.invShiftRows(state);
-            state = aesDecryption.invSubBytes(state);
+    // Standard padded Base64 of the first length bytes of data, returns the number of characters written
+    private static int encodeBase64(byte[] data, int length, char[] out) {
+        int o = 0;
+        int i = 0;
+        for (; i + 3 <= length; i += 3) {
+            int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+            out[o++] = BASE64[bits >>> 18];
+            out[o++] = BASE64[(bits >>> 12) & 0x3f];
+            out[o++] = BASE64[(bits >>> 6) & 0x3f];
+            out[o++] = BASE64[bits & 0x3f];
         }
-        state = aesDecryption.addRoundKey(state, keys[0]);
-        return state;
+        if (i < length) {
+            int bits = (data[i] & 0xff) << 16 | (i + 1 < length ? (data[i + 1] & 0xff) << 8 : 0);
+            out[o++] = BASE64[bits >>> 18];
+            out[o++] = BASE64[(bits >>> 12) & 0x3f];
+            out[o++] = i + 1 < length ? BASE64[(bits >>> 6) & 0x3f] : '=';
+            out[o++] = '=';
+        }
+        return o;
     }
 
     /*
-        Splits a string into blocks of a specified block size.
+        Splits a byte array into blocks of a specified block size.
      */
-    private List<String> splitStringIntoBlocks(String input, int blockSize) {
-        List<String> blocks = new ArrayList<>();
-        int length = input.length();
-        for (int i = 0; i < length; i += blockSize) {
-            int endIndex = Math.min(i + blockSize, length);
-            blocks.add(input.substring(i, endIndex));
+    public static List<byte[]> splitByteArrayIntoBlocks(byte[] data, int blockSize) {
+        List<byte[]> blocks = new ArrayList<>();
+        int numBlocks = (int) Math.ceil((double) data.length / blockSize);
+        for (int i = 0; i < numBlocks; i++) {
+            int offset = i * blockSize;
+            int length = Math.min(blockSize, data.length - offset);
+            byte[] block = new byte[length];
+            System.arraycopy(data, offset, block, 0, length);
+            blocks.add(block);
         }
         return blocks;
     }
 
     /*
-        Converts a string into a byte array block of size 16 by truncating or padding the string to fit into 16 bytes.
+        Converts a string into the given byte array block of size 16 by truncating or padding the string to fit into 16 bytes.
         If the string is less than 16 bytes, it is padded with zeroes. If the string is greater than 16 bytes,
         it is truncated to the first 16 bytes.
      */
-    private byte[] stringToBlock16(String str) {
+    private void stringToBlock16(String str, byte[] block16) {
         byte[] stringBytes = str.getBytes();
-        int len = stringBytes.length;
-        byte[] block16 = new byte[16];
-        System.arraycopy(stringBytes, 0, block16, 0, Math.min(len, 16));
-        return block16;
+        int len = Math.min(stringBytes.length, 16);
+        System.arraycopy(stringBytes, 0, block16, 0, len);
+        Arrays.fill(block16, len, 16, (byte) 0);
     }
 }
@@ -0,0 +1,169 @@
+package encryption;
+
+/*
+    Table-driven implementation of the block transformation performed by AesEncryption and AesDecryption.
+    SubBytes, ShiftRows and MixColumns are folded into four precomputed 256-entry int tables per direction,
+    so a round is 16 table lookups and a handful of xors over four int words (one per state column).
+    The engine is immutable once constructed and works only on local variables,
+    so a single instance can be shared between threads and a block costs no allocations.
+ */
+class AesEngine implements CipherBackend.BlockCipher {
+
+    private static final int[] TE0 = new int[256];
+    private static final int[] TE1 = new int[256];
+    private static final int[] TE2 = new int[256];
+    private static final int[] TE3 = new int[256];
+    private static final int[] TD0 = new int[256];
+    private static final int[] TD1 = new int[256];
+    private static final int[] TD2 = new int[256];
+    private static final int[] TD3 = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int s = AesEncryption.SBOX[i] & 0xff;
+            int s2 = GaloisTables.GaloisMult2[s] & 0xff;
+            int s3 = GaloisTables.GaloisMult3[s] & 0xff;
+            // column of the MixColumns matrix applied to a byte coming from row 0
+            int te = (s2 << 24) | (s << 16) | (s << 8) | s3;
+            TE0[i] = te;
+            TE1[i] = Integer.rotateRight(te, 8);
+            TE2[i] = Integer.rotateRight(te, 16);
+            TE3[i] = Integer.rotateRight(te, 24);
+
+            int is = AesDecryption.INVERSE_SBOX[i] & 0xff;
+            // column of the InvMixColumns matrix applied to a byte coming from row 0
+            int td = ((GaloisTables.GaloisMult14[is] & 0xff) << 24) | ((GaloisTables.GaloisMult9[is] & 0xff) << 16)
+                    | ((GaloisTables.GaloisMult13[is] & 0xff) << 8) | (GaloisTables.GaloisMult11[is] & 0xff);
+            TD0[i] = td;
+            TD1[i] = Integer.rotateRight(td, 8);
+            TD2[i] = Integer.rotateRight(td, 16);
+            TD3[i] = Integer.rotateRight(td, 24);
+        }
+    }
+
+    private final int rounds;
+    private final int[] encryptionKeys;
+    private final int[] decryptionKeys;
+
+    /*
+        Converts the round keys produced by KeySchedule into words.
+        The decryption keys are run through InvMixColumns (equivalent inverse cipher),
+        which lets decryption use the same table-driven round structure as encryption.
+     */
+    AesEngine(byte[][] keys, int rounds) {
+        this.rounds = rounds;
+        encryptionKeys = new int[4 * keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            for (int j = 0; j < 4; j++) {
+                encryptionKeys[4 * i + j] = getInt(keys[i], 4 * j);
+            }
+        }
+
+        // decryption walks the round keys backwards: K[rounds], then InvMixColumns(K[rounds]) ... InvMixColumns(K[1]), then K[0]
+        decryptionKeys = new int[encryptionKeys.length + 4];
+        System.arraycopy(encryptionKeys, 4 * rounds, decryptionKeys, 0, 4);
+        for (int i = rounds, offset = 4; i > 0; i--, offset += 4) {
+            for (int j = 0; j < 4; j++) {
+                decryptionKeys[offset + j] = invMixColumn(encryptionKeys[4 * i + j]);
+            }
+        }
+        System.arraycopy(encryptionKeys, 0, decryptionKeys, decryptionKeys.length - 4, 4);
+    }
+
+    @Override
+    public void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+        int[] k = encryptionKeys;
+        int w0 = getInt(in, inOffset) ^ k[0];
+        int w1 = getInt(in, inOffset + 4) ^ k[1];
+        int w2 = getInt(in, inOffset + 8) ^ k[2];
+        int w3 = getInt(in, inOffset + 12) ^ k[3];
+
+        int offset = 4;
+        for (int i = 0; i < rounds; i++) {
+            // row r of column c is taken from column c - r (see AesEncryption.shiftRows)
+            int t0 = TE0[w0 >>> 24] ^ TE1[(w3 >>> 16) & 0xff] ^ TE2[(w2 >>> 8) & 0xff] ^ TE3[w1 & 0xff] ^ k[offset];
+            int t1 = TE0[w1 >>> 24] ^ TE1[(w0 >>> 16) & 0xff] ^ TE2[(w3 >>> 8) & 0xff] ^ TE3[w2 & 0xff] ^ k[offset + 1];
+            int t2 = TE0[w2 >>> 24] ^ TE1[(w1 >>> 16) & 0xff] ^ TE2[(w0 >>> 8) & 0xff] ^ TE3[w3 & 0xff] ^ k[offset + 2];
+            int t3 = TE0[w3 >>> 24] ^ TE1[(w2 >>> 16) & 0xff] ^ TE2[(w1 >>> 8) & 0xff] ^ TE3[w0 & 0xff] ^ k[offset + 3];
+            w0 = t0;
+            w1 = t1;
+            w2 = t2;
+            w3 = t3;
+            offset += 4;
+        }
+
+        // the final round has no MixColumns and reuses the last round key
+        offset = 4 * rounds;
+        byte[] sbox = AesEncryption.SBOX;
+        putInt(out, outOffset, subShift(sbox, w0, w3, w2, w1) ^ k[offset]);
+        putInt(out, outOffset + 4, subShift(sbox, w1, w0, w3, w2) ^ k[offset + 1]);
+        putInt(out, outOffset + 8, subShift(sbox, w2, w1, w0, w3) ^ k[offset + 2]);
+        putInt(out, outOffset + 12, subShift(sbox, w3, w2, w1, w0) ^ k[offset + 3]);
+    }
+
+    @Override
+    public void decryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+        int[] k = decryptionKeys;
+        int w0 = getInt(in, inOffset) ^ k[0];
+        int w1 = getInt(in, inOffset + 4) ^ k[1];
+        int w2 = getInt(in, inOffset + 8) ^ k[2];
+        int w3 = getInt(in, inOffset + 12) ^ k[3];
+
+        int offset = 4;
+        for (int i = 0; i < rounds; i++) {
+            // row r of column c is taken from column c + r (see AesDecryption.invShiftRows)
+            int t0 = TD0[w0 >>> 24] ^ TD1[(w1 >>> 16) & 0xff] ^ TD2[(w2 >>> 8) & 0xff] ^ TD3[w3 & 0xff] ^ k[offset];
+            int t1 = TD0[w1 >>> 24] ^ TD1[(w2 >>> 16) & 0xff] ^ TD2[(w3 >>> 8) & 0xff] ^ TD3[w0 & 0xff] ^ k[offset + 1];
+            int t2 = TD0[w2 >>> 24] ^ TD1[(w3 >>> 16) & 0xff] ^ TD2[(w0 >>> 8) & 0xff] ^ TD3[w1 & 0xff] ^ k[offset + 2];
+            int t3 = TD0[w3 >>> 24] ^ TD1[(w0 >>> 16) & 0xff] ^ TD2[(w1 >>> 8) & 0xff] ^ TD3[w2 & 0xff] ^ k[offset + 3];
+            w0 = t0;
+            w1 = t1;
+            w2 = t2;
+            w3 = t3;
+            offset += 4;
+        }
+
+        byte[] inverseSbox = AesDecryption.INVERSE_SBOX;
+        putInt(out, outOffset, subShift(inverseSbox, w0, w1, w2, w3) ^ k[offset]);
+        putInt(out, outOffset + 4, subShift(inverseSbox, w1, w2, w3, w0) ^ k[offset + 1]);
+        putInt(out, outOffset + 8, subShift(inverseSbox, w2, w3, w0, w1) ^ k[offset + 2]);
+        putInt(out, outOffset + 12, subShift(inverseSbox, w3, w0, w1, w2) ^ k[offset + 3]);
+    }
+
+    /*
+        Builds one output column of a final round: row r is substituted from the corresponding byte of the r-th word.
+     */
+    private static int subShift(byte[] box, int r0, int r1, int r2, int r3) {
+        return ((box[r0 >>> 24] & 0xff) << 24)
+                | ((box[(r1 >>> 16) & 0xff] & 0xff) << 16)
+                | ((box[(r2 >>> 8) & 0xff] & 0xff) << 8)
+                | (box[r3 & 0xff] & 0xff);
+    }
+
+    /*
+        InvMixColumns of a single column word.
+     */
+    private static int invMixColumn(int word) {
+        int a0 = word >>> 24;
+        int a1 = (word >>> 16) & 0xff;
+        int a2 = (word >>> 8) & 0xff;
+        int a3 = word & 0xff;
+        int b0 = GaloisTables.GaloisMult14[a0] ^ GaloisTables.GaloisMult11[a1] ^ GaloisTables.GaloisMult13[a2] ^ GaloisTables.GaloisMult9[a3];
+        int b1 = GaloisTables.GaloisMult9[a0] ^ GaloisTables.GaloisMult14[a1] ^ GaloisTables.GaloisMult11[a2] ^ GaloisTables.GaloisMult13[a3];
+        int b2 = GaloisTables.GaloisMult13[a0] ^ GaloisTables.GaloisMult9[a1] ^ GaloisTables.GaloisMult14[a2] ^ GaloisTables.GaloisMult11[a3];
+        int b3 = GaloisTables.GaloisMult11[a0] ^ GaloisTables.GaloisMult13[a1] ^ GaloisTables.GaloisMult9[a2] ^ GaloisTables.GaloisMult14[a3];
+        return ((b0 & 0xff) << 24) | ((b1 & 0xff) << 16) | ((b2 & 0xff) << 8) | (b3 & 0xff);
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
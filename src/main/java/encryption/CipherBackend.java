@@ -0,0 +1,46 @@
+package encryption;
+
+/**
+ * Supplies the block cipher that {@link AES} uses to encrypt and decrypt 16-byte blocks.
+ * <p>
+ * Backends are not interchangeable for existing data: an index must be searched with the same backend it was built with.
+ * {@link JavaCipherBackend} is the default and matches every index built by this library so far.
+ */
+public interface CipherBackend {
+
+    /**
+     * @return a short, stable name identifying the backend, e.g. "java" or "jca"
+     */
+    String getName();
+
+    /**
+     * Creates a block cipher for the given key.
+     * @param key the secret key, 16, 24 or 32 bytes long
+     * @return a block cipher that is safe to share between threads
+     * @throws IllegalArgumentException if the key size is not supported
+     */
+    BlockCipher init(byte[] key);
+
+    /**
+     * Checks the backend against its known-answer vectors and verifies that decryption inverts encryption.
+     * {@link AES} runs this once per backend before first use.
+     * @throws IllegalStateException if the backend produces wrong results on this JVM
+     */
+    void selfTest();
+
+    /**
+     * A keyed block cipher working on 16-byte blocks.
+     */
+    interface BlockCipher {
+
+        /**
+         * Encrypts the 16 bytes at in[inOffset] into out[outOffset]. The input and output may overlap.
+         */
+        void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset);
+
+        /**
+         * Decrypts the 16 bytes at in[inOffset] into out[outOffset]. The input and output may overlap.
+         */
+        void decryptBlock(byte[] in, int inOffset, byte[] out, int outOffset);
+    }
+}
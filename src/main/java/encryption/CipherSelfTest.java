@@ -0,0 +1,39 @@
+package encryption;
+
+import java.util.Arrays;
+
+class CipherSelfTest {
+
+    /*
+        Each vector is {key, plain text block, expected cipher text block} in hex.
+        The plain text is encrypted and compared with the expected value, then decrypted again.
+     */
+    protected static void verify(CipherBackend backend, String[][] vectors) {
+        for (String[] vector : vectors) {
+            byte[] key = fromHex(vector[0]);
+            byte[] plainText = fromHex(vector[1]);
+            byte[] expected = fromHex(vector[2]);
+
+            CipherBackend.BlockCipher cipher = backend.init(key);
+            byte[] block = new byte[16];
+            cipher.encryptBlock(plainText, 0, block, 0);
+            if (!Arrays.equals(block, expected)) {
+                throw new IllegalStateException("Cipher backend " + backend.getName()
+                        + " failed the known-answer test for a " + key.length * 8 + "-bit key");
+            }
+            cipher.decryptBlock(block, 0, block, 0);
+            if (!Arrays.equals(block, plainText)) {
+                throw new IllegalStateException("Cipher backend " + backend.getName()
+                        + " failed the decryption test for a " + key.length * 8 + "-bit key");
+            }
+        }
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,225 @@
+package encryption;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+    Authenticated counter mode on top of a block cipher, used by AES for document payloads.
+
+    Sealed layout: nonce (12 bytes) | cipher text (as long as the plain text) | tag (16 bytes).
+    Block i of the cipher text is plain text block i xor E(nonce | i + 1), the counter being a 32-bit big-endian int,
+    so every block can be encrypted on its own and a payload can be split across threads at any block boundary.
+
+    The tag is HMAC-SHA256 over a two-level tree so that it can be computed in parallel too:
+    every CHUNK_SIZE bytes of cipher text get a chunk tag, HMAC(0 | nonce | chunk index | chunk),
+    and the payload tag is HMAC(1 | nonce | length | chunk tags) truncated to TAG_SIZE bytes.
+    Chunks are fixed in size, not in number, so the output does not depend on how many threads did the work.
+
+    The MAC key is derived with the block cipher from two blocks whose last four bytes are zero;
+    counter blocks never end in a zero counter, so the keystream never reuses them.
+ */
+final class CtrMode {
+
+    static final int NONCE_SIZE = 12;
+    static final int TAG_SIZE = 16;
+
+    private static final int BLOCK_SIZE = 16;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int PARALLEL_THRESHOLD = 4 * CHUNK_SIZE; // smaller payloads are not worth forking for
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final CipherBackend.BlockCipher engine;
+    private final SecretKeySpec mac_key;
+
+    CtrMode(CipherBackend.BlockCipher engine) {
+        this.engine = engine;
+        byte[] key = new byte[2 * BLOCK_SIZE];
+        key[BLOCK_SIZE] = 1;
+        engine.encryptBlock(key, 0, key, 0);
+        engine.encryptBlock(key, BLOCK_SIZE, key, BLOCK_SIZE);
+        this.mac_key = new SecretKeySpec(key, MAC_ALGORITHM);
+    }
+
+    /*
+        Encrypts under a fresh random nonce. Nonces are 96 bits, so a key should not seal more than about 2^32 payloads.
+     */
+    byte[] seal(byte[] plainText, ForkJoinPool pool) {
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        return seal(nonce, plainText, pool);
+    }
+
+    byte[] seal(byte[] nonce, byte[] plainText, ForkJoinPool pool) {
+        byte[] sealed = new byte[NONCE_SIZE + plainText.length + TAG_SIZE];
+        System.arraycopy(nonce, 0, sealed, 0, NONCE_SIZE);
+        byte[] chunk_tags = new byte[getNumberOfChunks(plainText.length) * MacHolder.TAG_LENGTH];
+        run(new Chunks(nonce, plainText, 0, sealed, NONCE_SIZE, plainText.length, chunk_tags, true), pool);
+        System.arraycopy(getPayloadTag(nonce, plainText.length, chunk_tags), 0, sealed, NONCE_SIZE + plainText.length, TAG_SIZE);
+        return sealed;
+    }
+
+    /*
+        Decrypts and checks the tag in the same pass. Nothing is returned unless the tag matches.
+     */
+    byte[] open(byte[] sealed, ForkJoinPool pool) throws AEADBadTagException {
+        if (sealed.length < NONCE_SIZE + TAG_SIZE) {
+            throw new AEADBadTagException("Sealed payload is too short: " + sealed.length);
+        }
+        int length = sealed.length - NONCE_SIZE - TAG_SIZE;
+        byte[] nonce = Arrays.copyOf(sealed, NONCE_SIZE);
+        byte[] plainText = new byte[length];
+        byte[] chunk_tags = new byte[getNumberOfChunks(length) * MacHolder.TAG_LENGTH];
+        run(new Chunks(nonce, sealed, NONCE_SIZE, plainText, 0, length, chunk_tags, false), pool);
+        byte[] tag = Arrays.copyOf(getPayloadTag(nonce, length, chunk_tags), TAG_SIZE);
+        if (!MessageDigest.isEqual(tag, Arrays.copyOfRange(sealed, NONCE_SIZE + length, sealed.length))) {
+            Arrays.fill(plainText, (byte) 0);
+            throw new AEADBadTagException("Payload tag does not match");
+        }
+        return plainText;
+    }
+
+    private static void run(Chunks chunks, ForkJoinPool pool) {
+        if (pool == null || chunks.length < PARALLEL_THRESHOLD) {
+            chunks.process();
+        } else {
+            pool.invoke(chunks);
+        }
+    }
+
+    private byte[] getPayloadTag(byte[] nonce, int length, byte[] chunk_tags) {
+        Mac mac = MacHolder.get(mac_key);
+        mac.update((byte) 1);
+        mac.update(nonce);
+        mac.update(ByteBuffer.allocate(Long.BYTES).putLong(length).array());
+        mac.update(chunk_tags);
+        return mac.doFinal();
+    }
+
+    private static int getNumberOfChunks(int length) {
+        return Math.max(1, (length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    /*
+        Encrypts or decrypts the chunks in [from, to), forking down to single chunks when run in a pool.
+        The chunk tag is always taken over the cipher text: the output when sealing, the input when opening.
+     */
+    private final class Chunks extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] nonce;
+        private final byte[] in;
+        private final int in_offset;
+        private final byte[] out;
+        private final int out_offset;
+        private final int length;
+        private final byte[] chunk_tags;
+        private final boolean sealing;
+        private final int from;
+        private final int to;
+
+        Chunks(byte[] nonce, byte[] in, int in_offset, byte[] out, int out_offset, int length, byte[] chunk_tags, boolean sealing) {
+            this(nonce, in, in_offset, out, out_offset, length, chunk_tags, sealing, 0, getNumberOfChunks(length));
+        }
+
+        private Chunks(byte[] nonce, byte[] in, int in_offset, byte[] out, int out_offset, int length, byte[] chunk_tags,
+                       boolean sealing, int from, int to) {
+            this.nonce = nonce;
+            this.in = in;
+            this.in_offset = in_offset;
+            this.out = out;
+            this.out_offset = out_offset;
+            this.length = length;
+            this.chunk_tags = chunk_tags;
+            this.sealing = sealing;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(split(from, middle), split(middle, to));
+            } else {
+                process();
+            }
+        }
+
+        // Works through the whole range on the calling thread
+        void process() {
+            byte[] counter = new byte[BLOCK_SIZE];
+            byte[] keystream = new byte[BLOCK_SIZE];
+            System.arraycopy(nonce, 0, counter, 0, NONCE_SIZE);
+            Mac mac = MacHolder.get(mac_key);
+            for (int c = from; c < to; c++) {
+                int start = c * CHUNK_SIZE;
+                int end = Math.min(start + CHUNK_SIZE, length);
+                for (int offset = start; offset < end; offset += BLOCK_SIZE) {
+                    int block = offset / BLOCK_SIZE + 1;
+                    counter[12] = (byte) (block >>> 24);
+                    counter[13] = (byte) (block >>> 16);
+                    counter[14] = (byte) (block >>> 8);
+                    counter[15] = (byte) block;
+                    engine.encryptBlock(counter, 0, keystream, 0);
+                    for (int i = 0, n = Math.min(BLOCK_SIZE, end - offset); i < n; i++) {
+                        out[out_offset + offset + i] = (byte) (in[in_offset + offset + i] ^ keystream[i]);
+                    }
+                }
+                mac.update((byte) 0);
+                mac.update(nonce);
+                mac.update(new byte[]{(byte) (c >>> 24), (byte) (c >>> 16), (byte) (c >>> 8), (byte) c});
+                if (sealing) {
+                    mac.update(out, out_offset + start, end - start);
+                } else {
+                    mac.update(in, in_offset + start, end - start);
+                }
+                try {
+                    mac.doFinal(chunk_tags, c * MacHolder.TAG_LENGTH);
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        private Chunks split(int from, int to) {
+            return new Chunks(nonce, in, in_offset, out, out_offset, length, chunk_tags, sealing, from, to);
+        }
+    }
+
+    /*
+        Mac instances are not thread-safe and costly to look up, so every thread keeps one.
+     */
+    private static final class MacHolder {
+
+        static final int TAG_LENGTH = 32;
+
+        private static final ThreadLocal<Mac> macs = ThreadLocal.withInitial(() -> {
+            try {
+                return Mac.getInstance(MAC_ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+            }
+        });
+
+        static Mac get(SecretKeySpec key) {
+            Mac mac = macs.get();
+            try {
+                mac.init(key);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+            return mac;
+        }
+    }
+}
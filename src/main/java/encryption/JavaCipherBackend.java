@@ -0,0 +1,48 @@
+package encryption;
+
+/**
+ * The pure-Java cipher implemented in this package (see {@link AesEngine}).
+ * It is the default backend and produces the cipher texts stored in all existing indexes.
+ */
+public class JavaCipherBackend implements CipherBackend {
+
+    /*
+        Known answers of this implementation for the FIPS-197 appendix C keys and plain text.
+        The key schedule and round structure of this library differ from FIPS-197,
+        so the cipher texts differ from the ones in the standard.
+     */
+    private static final String[][] KNOWN_ANSWERS = {
+            {"000102030405060708090a0b0c0d0e0f", "00112233445566778899aabbccddeeff", "353f9edc5c5dd8fde3c1ed8efa88e24d"},
+            {"000102030405060708090a0b0c0d0e0f1011121314151617", "00112233445566778899aabbccddeeff", "3faf84180ccc5018c25681b524f86225"},
+            {"000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f", "00112233445566778899aabbccddeeff", "cb555a0d80d1885ba9c1bb09b8bc275d"}
+    };
+
+    @Override
+    public String getName() {
+        return "java";
+    }
+
+    @Override
+    public BlockCipher init(byte[] key) {
+        int rounds;
+        switch (key.length) {
+            case 16:
+                rounds = 10;
+                break;
+            case 24:
+                rounds = 12;
+                break;
+            case 32:
+                rounds = 14;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported key size: " + key.length);
+        }
+        return new AesEngine(KeySchedule.keyExpansion(rounds + 1, key), rounds);
+    }
+
+    @Override
+    public void selfTest() {
+        CipherSelfTest.verify(this, KNOWN_ANSWERS);
+    }
+}
@@ -0,0 +1,84 @@
+package encryption;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * Standard FIPS-197 AES from the JDK provider ({@code javax.crypto}), which uses the AES instructions of the CPU where available.
+ * <p>
+ * The cipher of {@link JavaCipherBackend} deviates from FIPS-197 in its key schedule and round structure,
+ * so this backend produces different cipher texts. Use it for new indexes only; indexes built with the
+ * java backend must keep being searched with the java backend.
+ */
+public class JcaCipherBackend implements CipherBackend {
+
+    // FIPS-197 appendix C example vectors
+    private static final String[][] KNOWN_ANSWERS = {
+            {"000102030405060708090a0b0c0d0e0f", "00112233445566778899aabbccddeeff", "69c4e0d86a7b0430d8cdb78070b4c55a"},
+            {"000102030405060708090a0b0c0d0e0f1011121314151617", "00112233445566778899aabbccddeeff", "dda97ca4864cdfe06eaf70a0ec0d7191"},
+            {"000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f", "00112233445566778899aabbccddeeff", "8ea2b7ca516745bfeafc49904b496089"}
+    };
+
+    @Override
+    public String getName() {
+        return "jca";
+    }
+
+    @Override
+    public BlockCipher init(byte[] key) {
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new IllegalArgumentException("Unsupported key size: " + key.length);
+        }
+        return new JcaBlockCipher(new SecretKeySpec(key, "AES"));
+    }
+
+    @Override
+    public void selfTest() {
+        CipherSelfTest.verify(this, KNOWN_ANSWERS);
+    }
+
+    /*
+        javax.crypto.Cipher instances are stateful and not thread-safe, so every thread gets its own pair.
+     */
+    private static class JcaBlockCipher implements BlockCipher {
+
+        private final ThreadLocal<Cipher> encryptor;
+        private final ThreadLocal<Cipher> decryptor;
+
+        JcaBlockCipher(SecretKeySpec key) {
+            encryptor = ThreadLocal.withInitial(() -> newCipher(Cipher.ENCRYPT_MODE, key));
+            decryptor = ThreadLocal.withInitial(() -> newCipher(Cipher.DECRYPT_MODE, key));
+            // fail on a bad key here rather than on the first block
+            encryptor.get();
+        }
+
+        @Override
+        public void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+            process(encryptor.get(), in, inOffset, out, outOffset);
+        }
+
+        @Override
+        public void decryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+            process(decryptor.get(), in, inOffset, out, outOffset);
+        }
+
+        private static void process(Cipher cipher, byte[] in, int inOffset, byte[] out, int outOffset) {
+            try {
+                cipher.update(in, inOffset, 16, out, outOffset);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES block operation failed", e);
+            }
+        }
+
+        private static Cipher newCipher(int mode, SecretKeySpec key) {
+            try {
+                Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+                cipher.init(mode, key);
+                return cipher;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalArgumentException("Unable to initialize AES: " + e.getMessage(), e);
+            }
+        }
+    }
+}
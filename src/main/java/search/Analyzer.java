@@ -0,0 +1,160 @@
+package search;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns documents and queries into index terms: a {@link Tokenizer} followed by a chain of {@link TokenFilter}s.
+ * <p>
+ * The same analyzer must be used to build an index and to search it, so that a query produces the terms its documents did.
+ * {@link #standard(int)} is the analysis the index has always done: ASCII words, lowercased, without English stop words,
+ * split into n-grams. Other chains are put together with {@link #builder()}.
+ * <p>
+ * An analyzer is immutable and can be shared by any number of threads. Every thread gets a chain of its own,
+ * created the first time the thread uses the analyzer and reused for every document and query after that,
+ * so analysis allocates next to nothing per document. A thread must therefore finish with one token stream
+ * before it asks the same analyzer for the next one.
+ */
+public final class Analyzer {
+
+    /**
+     * Creates a filter of a chain. A filter may treat queries differently from documents.
+     */
+    public interface FilterFactory {
+        TokenStream create(TokenStream input, boolean query);
+    }
+
+    private static final Map<Integer, Analyzer> standard_analyzers = new ConcurrentHashMap<>();
+
+    private final boolean unicode;
+    private final List<FilterFactory> filters;
+    private final ThreadLocal<Chain> documentChains = ThreadLocal.withInitial(() -> new Chain(false));
+    private final ThreadLocal<Chain> queryChains = ThreadLocal.withInitial(() -> new Chain(true));
+
+    private Analyzer(Builder builder) {
+        this.unicode = builder.unicode;
+        this.filters = new ArrayList<>(builder.filters);
+    }
+
+    /**
+     * The analysis of {@link InvertedIndex#add(String, java.io.File, int)} and {@link Search#search(String, int)}:
+     * ASCII words, lowercased, without the default stop words, split into consecutive chunks of n characters.
+     * @param n the length of the n-grams, 0 for whole words
+     * @return the shared analyzer for n
+     */
+    public static Analyzer standard(int n) {
+        return standard_analyzers.computeIfAbsent(n, k -> builder()
+                .lowercase()
+                .stopWords(StopWordSet.defaults())
+                .ngrams(k)
+                .build());
+    }
+
+    /**
+     * @return a builder for a chain that starts with an ASCII tokenizer and no filters
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Analyzes a document. Line breaks end a line, see {@link Tokenizer}.
+     * @param reader the document; it is not closed
+     * @return the calling thread's stream, reset and ready for the first token
+     * @throws IOException if a filter fails to reset
+     */
+    public TokenStream tokenStream(Reader reader) throws IOException {
+        Chain chain = documentChains.get();
+        chain.source.setReader(reader, true);
+        chain.stream.reset();
+        return chain.stream;
+    }
+
+    /**
+     * Analyzes a query.
+     * @param query the query
+     * @return the calling thread's stream, reset and ready for the first token
+     * @throws IOException if a filter fails to reset
+     */
+    public TokenStream queryTokenStream(CharSequence query) throws IOException {
+        Chain chain = queryChains.get();
+        chain.source.setText(query);
+        chain.stream.reset();
+        return chain.stream;
+    }
+
+    private final class Chain {
+        final Tokenizer source;
+        final TokenStream stream;
+
+        Chain(boolean query) {
+            source = new Tokenizer(unicode);
+            TokenStream stream = source;
+            for (FilterFactory filter : filters) {
+                stream = filter.create(stream, query);
+            }
+            this.stream = stream;
+        }
+    }
+
+    /**
+     * Puts a chain together. Filters run in the order they are added.
+     */
+    public static final class Builder {
+        private boolean unicode;
+        private final List<FilterFactory> filters = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Splits text into Unicode words instead of ASCII ones, see {@link Tokenizer#Tokenizer(boolean)}.
+         */
+        public Builder unicode() {
+            unicode = true;
+            return this;
+        }
+
+        public Builder lowercase() {
+            return filter((input, query) -> new LowerCaseFilter(input));
+        }
+
+        public Builder stopWords(StopWordSet stopWords) {
+            return filter((input, query) -> new StopFilter(input, stopWords));
+        }
+
+        public Builder normalize(Normalizer.Form form) {
+            return filter((input, query) -> new NormalizationFilter(input, form));
+        }
+
+        /**
+         * Splits tokens into consecutive chunks of n characters.
+         * With n = 0 queries keep whole tokens of a single character, which documents drop, as they always have.
+         */
+        public Builder ngrams(int n) {
+            return ngrams(n, false);
+        }
+
+        /**
+         * @param n the length of the n-grams, 0 for whole tokens
+         * @param sliding whether to generate every window of n characters instead of consecutive chunks
+         */
+        public Builder ngrams(int n, boolean sliding) {
+            return filter((input, query) -> new NgramFilter(input, n, sliding, query));
+        }
+
+        public Builder filter(FilterFactory filter) {
+            filters.add(filter);
+            return this;
+        }
+
+        public Analyzer build() {
+            return new Analyzer(this);
+        }
+    }
+}
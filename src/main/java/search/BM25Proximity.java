@@ -1,99 +1,381 @@
 package search;
 
 import encryption.AES;
+import encryption.CipherBackend;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class BM25Proximity {
 
     private final AES aes;
-    private final Map<String, Integer> doc_lengths; // Stores document lengths
-    private final Map<String, Map<String, Set<Integer>>> inverted_index;
-    private int num_docs; // Number of documents
-    private final double k1 = 1.2; // BM25 parameter k1. Using default value
-    private final double b = 0.75; // BM25 parameter b. Using default value
-    private final double k3 = 2.0; // BM25 parameter k3. Using default value
-
-    public BM25Proximity(Map<String, Map<String, Set<Integer>>> index, AES aes) {
-        this.aes = aes;
-        this.inverted_index = index;
-        this.doc_lengths = new HashMap<>();
-        getNumberOfDocuments(index);
-    }
+    private final CiphertextCache ciphertexts; // memoized encryptions of query terms
+    private final Segment segment; // the documents and postings being searched
+    private final AtomicReferenceArray<String> document_ids; // document IDs by ordinal, decrypted on first use
+    private final int num_docs; // Number of documents
+    private final double avg_doc_len; // Average document length
+    private final ForkJoinPool pool; // runs the partitions of large queries, null to score on the calling thread
+    private final int parallel_threshold; // number of postings from which a query is split into partitions
+    private static final double k1 = 1.2; // BM25 parameter k1. Using default value
+    private static final double b = 0.75; // BM25 parameter b. Using default value
+    private static final double k3 = 2.0; // BM25 parameter k3. Using default value
+    private static final int NO_GAP = Integer.MAX_VALUE;
+    private static final int GALLOP_RATIO = 8; // switch from merging to galloping when one position list is this many times longer
+    /**
+     * Queries whose terms have fewer postings than this in total are scored on the calling thread,
+     * where splitting them up would cost more than it saves.
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 17;
+    private static final int PARTITIONS_PER_WORKER = 4; // so that a worker whose partitions score quickly can steal from the others
 
-    // Compute the number of documents in the index and store document lengths
-    private void getNumberOfDocuments(Map<String, Map<String, Set<Integer>>> index) {
-        int num_docs = 0;
+    public BM25Proximity(Map<IndexKey, Map<IndexKey, PostingList>> index, AES aes) {
+        this(new MemorySegment(index), aes, new CiphertextCache(aes));
+    }
 
-        for (Map.Entry<String, Map<String, Set<Integer>>> term : index.entrySet()) {
-            Map<String, Set<Integer>> doc_index = term.getValue();
-            for (Map.Entry<String, Set<Integer>> document : doc_index.entrySet()) {
-                String documentID = aes.decrypt(document.getKey()).trim();
-                Set<Integer> positions = document.getValue();
+    public BM25Proximity(Map<IndexKey, Map<IndexKey, PostingList>> index, byte[] key, CipherBackend backend) {
+        this(index, new AES(key, backend));
+    }
 
-                // Increment the number of documents only if it's a new document
-                if (!doc_lengths.containsKey(documentID)) {
-                    num_docs++;
-                }
+    /*
+        Document lengths and term IDFs are computed by the segment when it is loaded, so a query only looks at its own terms.
+        The instance is immutable afterwards and can be shared between threads.
+     */
+    BM25Proximity(Segment segment, AES aes, CiphertextCache ciphertexts) {
+        this.aes = aes;
+        this.ciphertexts = ciphertexts;
+        this.segment = segment;
+        this.num_docs = segment.getNumberOfDocuments();
+        this.document_ids = new AtomicReferenceArray<>(num_docs);
+        this.avg_doc_len = getAvgDocLength();
+        this.pool = ForkJoinPool.commonPool();
+        this.parallel_threshold = DEFAULT_PARALLEL_THRESHOLD;
+    }
 
-                // Find the maximum position of the current term in the document
-                int max_position = Collections.max(positions);
+    /*
+        The same scorer, sharing the decrypted document IDs, with partitions run on the given pool.
+     */
+    BM25Proximity(BM25Proximity scorer, ForkJoinPool pool, int parallel_threshold) {
+        if (parallel_threshold < 0) {
+            throw new IllegalArgumentException("Parallel threshold cannot be negative: " + parallel_threshold);
+        }
+        this.aes = scorer.aes;
+        this.ciphertexts = scorer.ciphertexts;
+        this.segment = scorer.segment;
+        this.num_docs = scorer.num_docs;
+        this.document_ids = scorer.document_ids;
+        this.avg_doc_len = scorer.avg_doc_len;
+        this.pool = pool;
+        this.parallel_threshold = parallel_threshold;
+    }
 
-                // Update the document length with the highest position.
-                // The term with the highest position is a good approximation of the document length
-                doc_lengths.put(documentID, Math.max(doc_lengths.getOrDefault(documentID, 0), max_position));
+    /*
+        Looks up the postings of every query term, null for terms that are not in the segment.
+     */
+    private TermPostings[] getPostings(String[] query_terms) {
+        TermPostings[] query_postings = new TermPostings[query_terms.length];
+        List<String> terms = Arrays.asList(query_terms);
+        for (int i = 0; i < query_terms.length; i++) {
+            // a repeated term shares the postings of its first occurrence, the segment may decode them on every lookup
+            int first = terms.indexOf(query_terms[i]);
+            query_postings[i] = first < i ? query_postings[first] : segment.getPostings(ciphertexts.encrypt(query_terms[i]));
+        }
+        return query_postings;
+    }
 
-            }
+    // The plain document ID of the given ordinal, decrypted only once
+    private String getDocumentID(int ordinal) {
+        String documentID = document_ids.get(ordinal);
+        if (documentID == null) {
+            documentID = aes.decrypt(segment.getDocumentKey(ordinal).toBytes()).trim();
+            document_ids.set(ordinal, documentID);
         }
-        this.num_docs = num_docs;
+        return documentID;
     }
 
     /**
      * Searches the document collection for the given query terms and calculates a relevance score for each document.
      * The relevance score is based on the BM25 scoring model, which takes into account term frequency, inverse document frequency,
      * document length normalization, and term proximity.
+     * <p>
+     * Scoring is term-at-a-time: each query term is looked up once and only the documents in its posting list are visited,
+     * so the cost depends on the length of the posting lists rather than on the size of the corpus.
+     * Queries with many postings split the documents into ranges that are scored in parallel, with the same result.
      *
      * @param query_terms An array of query terms to search for in the document collection.
-     * @return A map of document IDs to their corresponding relevance scores, where a higher score indicates higher relevance.
+     * @return A map of the matching document IDs to their corresponding relevance scores, where a higher score indicates higher relevance.
+     * Documents that contain none of the query terms are left out. The map iterates in index order.
      */
     public Map<String, Double> getBM25score(String[] query_terms) {
-        Map<String, Double> document_scores = new HashMap<>();
+        double[] document_scores = new double[num_docs];
+        double[] proximity_scores = new double[num_docs]; // 0 until computed, a proximity score is always >= 1
+        TermPostings[] query_postings = getPostings(query_terms);
+
+        int[] partitions = getPartitions(query_postings);
+        if (partitions == null) {
+            scoreRange(query_terms, query_postings, 0, num_docs, document_scores, proximity_scores);
+        } else {
+            // partitions write to disjoint parts of the arrays
+            forEachPartition(partitions, (from, to) -> {
+                scoreRange(query_terms, query_postings, from, to, document_scores, proximity_scores);
+                return null;
+            });
+        }
+
+        Map<String, Double> scores = new LinkedHashMap<>();
+        for (int ordinal = 0; ordinal < num_docs; ordinal++) {
+            if (document_scores[ordinal] != 0) {
+                scores.put(getDocumentID(ordinal), document_scores[ordinal]);
+            }
+        }
+        return scores;
+    }
 
-        for (Map.Entry<String, Integer> entry : doc_lengths.entrySet()) {
-            String documentID = entry.getKey();
-            double doc_score = 0.0;
+    /*
+        Scores the documents in [from, to) term-at-a-time. Every document adds up its terms in query term order,
+        so its score does not depend on how the documents were partitioned.
+     */
+    private void scoreRange(String[] query_terms, TermPostings[] query_postings, int from, int to,
+                            double[] document_scores, double[] proximity_scores) {
+        for (int t = 0; t < query_terms.length; t++) {
+            TermPostings term_postings = query_postings[t];
+            if (term_postings == null) {
+                continue; // the term does not appear in the index
+            }
 
-            for (String term : query_terms) {
-                Map<String, Set<Integer>> doc_index = inverted_index.get(aes.encrypt(term));
-                if (doc_index == null) {
-                    continue; // the term does not appear in the index
+            double idf = term_postings.idf;
+            double query_term_weight = getQueryTermWeight(query_terms[t], query_terms);
+
+            for (int i = gallop(term_postings.documents, 0, from); i < term_postings.size() && term_postings.documents[i] < to; i++) {
+                int ordinal = term_postings.documents[i];
+                if (proximity_scores[ordinal] == 0) {
+                    proximity_scores[ordinal] = getProximityScore(query_terms, query_postings, ordinal);
                 }
+                double proximity_score = proximity_scores[ordinal];
+                double term_freq = getTermFrequency(term_postings.positions[i].size(), segment.getDocumentLength(ordinal), avg_doc_len);
+                double term_weight = term_freq * idf * query_term_weight;
+                document_scores[ordinal] += term_weight * proximity_score;
+            }
+        }
+    }
+
+    /*
+        Splits the documents into ranges of equal size to be scored in parallel, returned as their boundaries
+        0 = b[0] < b[1] < ... < b[m] = num_docs, or null if the query is too small to be worth it.
+     */
+    private int[] getPartitions(TermPostings[] query_postings) {
+        if (pool == null || pool.getParallelism() < 2) {
+            return null;
+        }
+        long postings = 0;
+        for (TermPostings term_postings : query_postings) {
+            if (term_postings != null) {
+                postings += term_postings.size();
+            }
+        }
+        if (postings < parallel_threshold) {
+            return null;
+        }
+        int count = (int) Math.min(num_docs, (long) pool.getParallelism() * PARTITIONS_PER_WORKER);
+        if (count < 2) {
+            return null;
+        }
+        int[] bounds = new int[count + 1];
+        for (int p = 0; p <= count; p++) {
+            bounds[p] = (int) ((long) num_docs * p / count);
+        }
+        return bounds;
+    }
+
+    /*
+        Runs the task on every partition in the pool and returns the results in partition order.
+     */
+    private <T> List<T> forEachPartition(int[] partitions, PartitionTask<T> task) {
+        List<ForkJoinTask<T>> tasks = new ArrayList<>();
+        for (int p = 0; p < partitions.length - 1; p++) {
+            int from = partitions[p];
+            int to = partitions[p + 1];
+            tasks.add(ForkJoinTask.adapt(() -> task.run(from, to)));
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        List<T> results = new ArrayList<>();
+        for (ForkJoinTask<T> partition : tasks) {
+            results.add(partition.join());
+        }
+        return results;
+    }
 
-                Set<Integer> positions = doc_index.get(aes.encrypt(documentID));
-                if (positions == null) {
-                    continue; // the term does not appear in the current document
+    /**
+     * Finds the k documents with the highest BM25 proximity score, as ranked by {@link #getBM25score(String[])}.
+     * Documents with equal scores are ranked in index order.
+     * <p>
+     * The posting lists are traversed document-at-a-time with WAND pruning: every term has an upper bound on the score it
+     * can contribute, and a document is only scored if the bounds of the terms it may contain can beat the current k-th best score.
+     * Posting entries below that point are skipped.
+     * Queries with many postings split the documents into ranges, find the top k of every range in parallel and merge them;
+     * the ranking is the same, only the pruning statistics differ.
+     *
+     * @param query_terms An array of query terms to search for in the document collection.
+     * @param k the number of documents to return
+     * @return the top k documents in descending order of relevance, together with pruning statistics
+     */
+    public TopDocs getTopK(String[] query_terms, int k) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive: " + k);
+        }
+
+        TermPostings[] query_postings = getPostings(query_terms);
+        double max_proximity = getMaxProximityScore(query_postings);
+
+        Ranking ranking;
+        int[] partitions = getPartitions(query_postings);
+        if (partitions == null) {
+            ranking = rankRange(query_terms, query_postings, max_proximity, k, 0, num_docs);
+        } else {
+            // the top k is among the top k of the partitions, with every document scored exactly as without partitions
+            ranking = new Ranking();
+            for (Ranking partition : forEachPartition(partitions,
+                    (from, to) -> rankRange(query_terms, query_postings, max_proximity, k, from, to))) {
+                ranking.top.addAll(partition.top);
+                ranking.scored += partition.scored;
+                ranking.skipped += partition.skipped;
+            }
+        }
+
+        List<ScoredDocument> ranked = ranking.top;
+        ranked.sort(ScoredDocument.WORST_FIRST.reversed());
+        int size = Math.min(k, ranked.size());
+        List<String> ids = new ArrayList<>();
+        double[] scores = new double[size];
+        for (int i = 0; i < size; i++) {
+            ids.add(getDocumentID(ranked.get(i).document));
+            scores[i] = ranked.get(i).score;
+        }
+        int skipped_documents = countDocuments(query_postings) - ranking.scored;
+        return new TopDocs(ids, scores, ranking.scored, skipped_documents, ranking.skipped);
+    }
+
+    /*
+        The top k of the documents in [from, to), unordered, found with WAND.
+     */
+    private Ranking rankRange(String[] query_terms, TermPostings[] query_postings, double max_proximity, int k, int from, int to) {
+        // one cursor per distinct query term that appears in the index
+        Map<String, PostingsCursor> cursor_by_term = new LinkedHashMap<>();
+        PostingsCursor[] query_cursors = new PostingsCursor[query_terms.length];
+        for (int i = 0; i < query_terms.length; i++) {
+            String term = query_terms[i];
+            if (!cursor_by_term.containsKey(term)) {
+                TermPostings term_postings = query_postings[i];
+                PostingsCursor cursor = null;
+                if (term_postings != null) {
+                    double idf = term_postings.idf;
+                    double query_term_weight = getQueryTermWeight(term, query_terms);
+                    int occurrences = Collections.frequency(Arrays.asList(query_terms), term);
+                    // small margin so that rounding can never push a real score above the bound
+                    double upper_bound = occurrences * term_postings.max_term_freq * idf * query_term_weight * max_proximity * (1 + 1e-9);
+                    cursor = new PostingsCursor(term_postings, idf, query_term_weight, upper_bound, from, to);
                 }
+                cursor_by_term.put(term, cursor);
+            }
+            query_cursors[i] = cursor_by_term.get(term);
+        }
 
-                int tf = positions.size();
-                int doc_length = doc_lengths.get(documentID);
-                int doc_freq = doc_index.size();
+        List<PostingsCursor> active = new ArrayList<>();
+        for (PostingsCursor cursor : cursor_by_term.values()) {
+            if (cursor != null) {
+                active.add(cursor);
+            }
+        }
+        PostingsCursor[] cursors = active.toArray(new PostingsCursor[0]);
+
+        // the worst of the current top k documents is at the head
+        PriorityQueue<ScoredDocument> top = new PriorityQueue<>(k, ScoredDocument.WORST_FIRST);
+        Ranking ranking = new Ranking();
+
+        while (true) {
+            Arrays.sort(cursors, PostingsCursor.BY_DOCUMENT);
+
+            // a candidate must beat the k-th best score; later documents lose ties, so equal is not enough
+            double threshold = top.size() < k ? 0 : top.peek().score;
+            double bound = 0;
+            int pivot = -1;
+            for (int i = 0; i < cursors.length && cursors[i].document() != PostingsCursor.NO_MORE_DOCUMENTS; i++) {
+                bound += cursors[i].upper_bound;
+                if (bound > threshold) {
+                    pivot = i;
+                    break;
+                }
+            }
+            if (pivot == -1) {
+                break; // no remaining document can enter the top k
+            }
 
-                double idf = getIDF(doc_freq);
-                double avg_doc_len = getAvgDocLength();
-                double query_term_weight = getQueryTermWeight(term, query_terms);
-                double proximity_score = getProximityScore(query_terms, documentID);
-                double term_freq = tf * (k1 + 1) / (tf + k1 * (1 - b + b * doc_length / avg_doc_len));
-                double term_weight = term_freq * idf * query_term_weight;
-                doc_score += term_weight * proximity_score;
+            int pivot_document = cursors[pivot].document();
+            if (cursors[0].document() == pivot_document) {
+                double score = getScore(query_terms, query_postings, query_cursors, pivot_document);
+                ranking.scored++;
+                if (top.size() < k) {
+                    top.add(new ScoredDocument(pivot_document, score));
+                } else if (score > top.peek().score) {
+                    top.poll();
+                    top.add(new ScoredDocument(pivot_document, score));
+                }
+                for (PostingsCursor cursor : cursors) {
+                    if (cursor.document() == pivot_document) {
+                        cursor.next();
+                    }
+                }
+            } else {
+                // documents before the pivot cannot reach the threshold with the terms that are left
+                for (int i = 0; i < pivot; i++) {
+                    ranking.skipped += cursors[i].advance(pivot_document);
+                }
+            }
+        }
+
+        ranking.top.addAll(top);
+        return ranking;
+    }
+
+    // Number of distinct documents that contain at least one of the query terms
+    private int countDocuments(TermPostings[] query_postings) {
+        BitSet documents = new BitSet(num_docs);
+        for (TermPostings term_postings : query_postings) {
+            if (term_postings != null) {
+                for (int document : term_postings.documents) {
+                    documents.set(document);
+                }
+            }
+        }
+        return documents.cardinality();
+    }
+
+    /*
+        The full score of one document, added up in query term order exactly like getBM25score does.
+        Every cursor of a term contained in the document must be positioned on it.
+     */
+    private double getScore(String[] query_terms, TermPostings[] query_postings, PostingsCursor[] query_cursors, int ordinal) {
+        double proximity_score = getProximityScore(query_terms, query_postings, ordinal);
+        double doc_score = 0.0;
+        for (PostingsCursor cursor : query_cursors) {
+            if (cursor == null || cursor.document() != ordinal) {
+                continue; // the term does not appear in the current document
             }
-            System.out.println(documentID + "    " + doc_score);
-            document_scores.put(documentID, doc_score);
+            double term_freq = getTermFrequency(cursor.positions().size(), segment.getDocumentLength(ordinal), avg_doc_len);
+            double term_weight = term_freq * cursor.idf * cursor.query_term_weight;
+            doc_score += term_weight * proximity_score;
         }
-        return document_scores;
+        return doc_score;
+    }
+
+    // Calculate the term frequency component of BM25 for a term occurring tf times in a document
+    protected static double getTermFrequency(int tf, int doc_length, double avg_doc_len) {
+        return tf * (k1 + 1) / (tf + k1 * (1 - b + b * doc_length / avg_doc_len));
     }
 
     // Calculate the IDF (Inverse Document Frequency) for a given term
-    private double getIDF(int doc_freq) {
+    protected static double getIDF(int doc_freq, int num_docs) {
         /* The IDF formula used in BM25 has a drawback:
          When used for terms appearing in more than half of the corpus,
          the value would come out as negative value,
@@ -106,15 +388,11 @@ public class BM25Proximity {
 
     // Calculate the average document length
     private double getAvgDocLength() {
-        int total_doc_length = 0;
-        for (int doc_length : doc_lengths.values()) {
-            total_doc_length += doc_length;
-        }
-        return (double) total_doc_length / doc_lengths.size();
+        return (double) segment.getTotalDocumentLength() / num_docs;
     }
 
     // Calculate the query term weight for a given term in the query
-    private double getQueryTermWeight(String query_term, String[] query_terms) {
+    private static double getQueryTermWeight(String query_term, String[] query_terms) {
         int freq = 0;
         for (String term : query_terms) {
             if (term.equals(query_term)) {
@@ -124,67 +402,190 @@ public class BM25Proximity {
         return (k3 + 1) * freq / (k3 + freq);
     }
 
-    // Compute the proximity score between the query terms in a given document
-    private double getProximityScore(String[] query_terms, String documentID) {
-        double score = 0.0;
-        Map<String, Set<Integer>> map = new HashMap<>();
-
-        for (String query : query_terms) {
-            Map<String, Set<Integer>> map1 = inverted_index.get(aes.encrypt(query));
+    /*
+        This method calculates a proximity score that reflects how close the query terms appear together in the document.
+        The closer the query terms appear, the higher the proximity score,
+        which may suggest a higher relevance of the document for the given query.
+        Every adjacent pair of query terms that both occur in the document multiplies the score by 1 + e^-gap,
+        where gap is the smallest distance from an occurrence of the first term to the next occurrence of the second.
+     */
+    private double getProximityScore(String[] query_terms, TermPostings[] query_postings, int ordinal) {
+        // decode every term's positions in the document once, a term can take part in two pairs
+        int[][] positions = new int[query_terms.length][];
+        for (int t = 0; t < query_terms.length; t++) {
+            TermPostings term_postings = query_postings[t];
+            if (term_postings != null) {
+                int i = term_postings.indexOf(ordinal);
+                if (i >= 0) {
+                    positions[t] = term_postings.positions[i].toArray();
+                }
+            }
+        }
 
-            if (map1 != null) {
-                map.put(query, inverted_index.get(aes.encrypt(query)).getOrDefault(aes.encrypt(documentID), Collections.emptySet()));
-            } else {
+        double score = 1.0;
+        for (int i = 0; i < query_terms.length - 1; i++) {
+            if (positions[i] == null || positions[i + 1] == null) {
                 continue;
             }
+            int proximity = getMinimumGap(positions[i], positions[i + 1]);
+            if (proximity != NO_GAP) {
+                score *= 1.0 + Math.exp(-proximity); // the smaller the proximity, the higher the score
+            }
         }
-        score += getProximityScoreForDocID(map, query_terms);
         return score;
     }
 
     /*
-        This method calculates a proximity score that reflects how close the query terms appear together in the document.
-        The closer the query terms appear, the higher the proximity score,
-        which may suggest a higher relevance of the document for the given query.
+        The smallest second[j] - first[i] with second[j] >= first[i], or NO_GAP if there is none. Both arrays must be sorted.
+        Lists of similar length are merged with two pointers in O(m + n). When one list is much shorter,
+        only the short one is walked and the matching entry of the long one is found with a galloping search.
      */
-    double getProximityScoreForDocID(Map<String, Set<Integer>> term_index, String[] query_terms) {
-        double score = 1.0;
-        for (int i = 0; i < query_terms.length - 1; i++) {
-            String term1 = query_terms[i];
-            String term2 = query_terms[i + 1];
-            List<Integer> term1_positions = new ArrayList<>(term_index.getOrDefault(term1, Collections.emptySet())); // sorted in ascending order
-            List<Integer> term2_positions = new ArrayList<>(term_index.getOrDefault(term2, Collections.emptySet())); // sorted in ascending order
+    private static int getMinimumGap(int[] first, int[] second) {
+        int gap = NO_GAP;
+        if ((long) first.length * GALLOP_RATIO < second.length) {
+            // the closest following occurrence of the second term
+            int j = 0;
+            for (int i = 0; i < first.length && gap > 0; i++) {
+                j = gallop(second, j, first[i]);
+                if (j == second.length) {
+                    break;
+                }
+                gap = Math.min(gap, second[j] - first[i]);
+            }
+        } else if ((long) second.length * GALLOP_RATIO < first.length) {
+            // the closest preceding occurrence of the first term
+            int i = 0;
+            for (int j = 0; j < second.length && gap > 0; j++) {
+                i = gallop(first, i, second[j] + 1);
+                if (i > 0) {
+                    gap = Math.min(gap, second[j] - first[i - 1]);
+                }
+            }
+        } else {
+            int i = 0;
+            int j = 0;
+            while (i < first.length && j < second.length && gap > 0) {
+                if (second[j] >= first[i]) {
+                    gap = Math.min(gap, second[j] - first[i]);
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+        }
+        return gap;
+    }
 
-            if (term1_positions.isEmpty() || term2_positions.isEmpty()) {
-                continue;
+    /*
+        Index of the first entry at or after from that is >= target, or values.length if there is none.
+        Probes from, from + 1, from + 3, from + 7, ... and then binary searches the last step,
+        so the cost grows with the log of the distance moved rather than with the length of the array.
+     */
+    private static int gallop(int[] values, int from, int target) {
+        int low = from;
+        int step = 1;
+        int high = from;
+        while (high < values.length && values[high] < target) {
+            low = high + 1;
+            high += step;
+            step <<= 1;
+        }
+        high = Math.min(high, values.length);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < target) {
+                low = mid + 1;
+            } else {
+                high = mid;
             }
+        }
+        return low;
+    }
 
-            double proximity = Double.MAX_VALUE;
+    /*
+        Upper bound of the proximity score of any document for the given query:
+        every adjacent pair of terms that both appear in the index can at most double the score.
+     */
+    private double getMaxProximityScore(TermPostings[] query_postings) {
+        double score = 1.0;
+        for (int i = 0; i < query_postings.length - 1; i++) {
+            if (query_postings[i] != null && query_postings[i + 1] != null) {
+                score *= 2.0;
+            }
+        }
+        return score;
+    }
 
-            for (int j = 0; j < term1_positions.size(); j++) {
-                int pos1 = term1_positions.get(j);
-                int closestPos2 = Integer.MAX_VALUE;
+    /*
+        Iterates over the postings of one query term in document order, restricted to the documents in [from, to).
+     */
+    private static class PostingsCursor {
+
+        static final int NO_MORE_DOCUMENTS = Integer.MAX_VALUE;
+        static final Comparator<PostingsCursor> BY_DOCUMENT = Comparator.comparingInt(PostingsCursor::document);
+
+        final TermPostings postings;
+        final double idf;
+        final double query_term_weight;
+        final double upper_bound;
+        final int end; // index of the first posting after the range
+        int index;
+
+        PostingsCursor(TermPostings postings, double idf, double query_term_weight, double upper_bound, int from, int to) {
+            this.postings = postings;
+            this.idf = idf;
+            this.query_term_weight = query_term_weight;
+            this.upper_bound = upper_bound;
+            this.index = gallop(postings.documents, 0, from);
+            this.end = gallop(postings.documents, index, to);
+        }
 
-                for (int k = 0; k < term2_positions.size(); k++) {
-                    int pos2 = term2_positions.get(k);
+        int document() {
+            return index < end ? postings.documents[index] : NO_MORE_DOCUMENTS;
+        }
 
-                    // the first occurrence in term2_positions that is bigger than the current position is the closest one
-                    if (pos2 >= pos1) {
-                        closestPos2 = pos2;
-                        break;
-                    }
-                }
+        PostingList positions() {
+            return postings.positions[index];
+        }
 
-                if (closestPos2 != Integer.MAX_VALUE) {
-                    proximity = Math.min(proximity, closestPos2 - pos1);
-                }
-            }
+        void next() {
+            index++;
+        }
 
-            if (proximity != Double.MAX_VALUE) {
-                score *= 1.0 + Math.exp(-proximity); // the smaller the proximity, the higher the score
-            }
+        /*
+            Moves to the first document >= target with a galloping search and returns the number of entries skipped.
+         */
+        int advance(int target) {
+            int start = index;
+            index = Math.min(gallop(postings.documents, index, target), end);
+            return index - start;
         }
-        return score;
     }
 
+    /*
+        The best documents of a range and the work it took to find them.
+     */
+    private static class Ranking {
+        final List<ScoredDocument> top = new ArrayList<>();
+        int scored;
+        long skipped;
+    }
+
+    private interface PartitionTask<T> {
+        T run(int from, int to);
+    }
+
+    private static class ScoredDocument {
+
+        static final Comparator<ScoredDocument> WORST_FIRST = Comparator.<ScoredDocument>comparingDouble(d -> d.score)
+                .thenComparing(Comparator.<ScoredDocument>comparingInt(d -> d.document).reversed());
+
+        final int document;
+        final double score;
+
+        ScoredDocument(int document, double score) {
+            this.document = document;
+            this.score = score;
+        }
+    }
 }
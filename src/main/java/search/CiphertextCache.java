@@ -0,0 +1,65 @@
+package search;
+
+import encryption.AES;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+    Bounded plaintext -> ciphertext cache in front of AES.encryptToBytes.
+    Encryption of terms and document IDs is deterministic, so a cached ciphertext is always valid for the key it was made with.
+    Entries are evicted in least-recently-used order once the cache holds maximumSize entries.
+ */
+class CiphertextCache {
+
+    protected static final int DEFAULT_MAXIMUM_SIZE = 10_000;
+
+    private final AES aes;
+    private final Map<String, IndexKey> cache;
+    private long hits;
+    private long misses;
+
+    CiphertextCache(AES aes) {
+        this(aes, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    CiphertextCache(AES aes, int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maximumSize);
+        }
+        this.aes = aes;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, IndexKey> eldest) {
+                return size() > maximumSize;
+            }
+        };
+    }
+
+    /*
+        Returns the ciphertext of the given plain text, encrypting it only on a cache miss.
+     */
+    protected synchronized IndexKey encrypt(String plainText) {
+        IndexKey cipherText = cache.get(plainText);
+        if (cipherText != null) {
+            hits++;
+            return cipherText;
+        }
+        misses++;
+        cipherText = IndexKey.of(aes.encryptToBytes(plainText));
+        cache.put(plainText, cipherText);
+        return cipherText;
+    }
+
+    protected synchronized long getHitCount() {
+        return hits;
+    }
+
+    protected synchronized long getMissCount() {
+        return misses;
+    }
+
+    protected synchronized int size() {
+        return cache.size();
+    }
+}
@@ -0,0 +1,67 @@
+package search;
+
+import java.util.*;
+
+/*
+    The documents of an InvertedIndex. Every encrypted document ID gets an int ordinal when it is first added,
+    in the order documents arrive, and keeps it until it is deleted; updating a document does not change its ordinal.
+    The entry of a document also holds its length in tokens and its terms, so that deleting or updating it only visits those terms.
+    Ordinals of deleted documents are not reused. Segments built from the index number the live documents 0 .. n - 1
+    in ordinal order.
+    A dictionary is immutable, changes return a new dictionary that shares the unchanged entries with this one.
+ */
+final class DocumentDictionary {
+
+    static final DocumentDictionary EMPTY = new DocumentDictionary(PersistentMap.empty(), 0);
+
+    private final PersistentMap<IndexKey, Entry> entries;
+    private final int next_ordinal;
+
+    private DocumentDictionary(PersistentMap<IndexKey, Entry> entries, int next_ordinal) {
+        this.entries = entries;
+        this.next_ordinal = next_ordinal;
+    }
+
+    // The entry of the given document, or null if it is not in the index
+    Entry get(IndexKey key) {
+        return entries.get(key);
+    }
+
+    // This dictionary with the given length and terms for the document, which gets the next ordinal if it is new
+    DocumentDictionary put(IndexKey key, int length, Set<IndexKey> terms) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return new DocumentDictionary(entries.with(key, new Entry(key, next_ordinal, length, terms)), next_ordinal + 1);
+        }
+        return new DocumentDictionary(entries.with(key, new Entry(key, entry.ordinal, length, terms)), next_ordinal);
+    }
+
+    DocumentDictionary remove(IndexKey key) {
+        return new DocumentDictionary(entries.without(key), next_ordinal);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    // All documents in ordinal order
+    Entry[] getDocuments() {
+        Entry[] documents = entries.values().toArray(new Entry[0]);
+        Arrays.sort(documents, Comparator.comparingInt(entry -> entry.ordinal));
+        return documents;
+    }
+
+    static final class Entry {
+        final IndexKey key;
+        final int ordinal;
+        final int length; // number of tokens
+        final Set<IndexKey> terms; // encrypted terms of the document, not modified after the entry is created
+
+        private Entry(IndexKey key, int ordinal, int length, Set<IndexKey> terms) {
+            this.key = key;
+            this.ordinal = ordinal;
+            this.length = length;
+            this.terms = terms;
+        }
+    }
+}
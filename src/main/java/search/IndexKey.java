@@ -0,0 +1,139 @@
+package search;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * An encrypted term or document ID of the index: the raw cipher text, stored as big-endian longs.
+ * <p>
+ * Most keys are a single 16-byte block and fit in two long fields, so a key costs one small object instead of a
+ * Base64 String and its backing array, and equals and compareTo compare two longs instead of 24 characters.
+ * Longer cipher texts keep the remaining longs in an array. The hash code is computed once, when the key is created.
+ * <p>
+ * Keys are ordered by their unsigned bytes, the order of the term and document tables in segment files.
+ * Base64 is used only where keys are written as text: {@link #toString()}, {@link #fromString(String)} and JSON.
+ */
+public final class IndexKey implements Comparable<IndexKey> {
+
+    private static final long[] NO_WORDS = new long[0];
+
+    private final int length; // in bytes
+    private final long first; // bytes 0 to 7, zero-padded
+    private final long second; // bytes 8 to 15, zero-padded
+    private final long[] rest; // bytes 16 and later, zero-padded
+    private final int hash;
+
+    private IndexKey(byte[] bytes) {
+        this.length = bytes.length;
+        this.first = getWord(bytes, 0);
+        this.second = getWord(bytes, 8);
+        this.rest = bytes.length > 16 ? new long[(bytes.length - 9) / 8] : NO_WORDS;
+        long h = first * 31 + second;
+        for (int i = 0; i < rest.length; i++) {
+            rest[i] = getWord(bytes, 16 + 8 * i);
+            h = h * 31 + rest[i];
+        }
+        h = h * 31 + length;
+        this.hash = (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @param bytes the raw cipher text; the array is not kept
+     * @return the key of the cipher text
+     */
+    public static IndexKey of(byte[] bytes) {
+        return new IndexKey(bytes);
+    }
+
+    /**
+     * @param base64 the cipher text as produced by {@link encryption.AES#encrypt(String)}
+     * @return the key of the cipher text
+     * @throws IllegalArgumentException if the text is not valid Base64
+     */
+    @JsonCreator
+    public static IndexKey fromString(String base64) {
+        return new IndexKey(Base64.getDecoder().decode(base64));
+    }
+
+    /**
+     * @return the number of bytes of the cipher text
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return a copy of the raw cipher text
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = byteAt(i);
+        }
+        return bytes;
+    }
+
+    // The byte at the given index, without copying the key
+    byte byteAt(int index) {
+        long word = index < 8 ? first : index < 16 ? second : rest[(index - 16) / 8];
+        return (byte) (word >>> (56 - 8 * (index % 8)));
+    }
+
+    /**
+     * @return the cipher text in Base64, the form keys have in JSON and in the output of {@link encryption.AES#encrypt(String)}
+     */
+    @JsonValue
+    @Override
+    public String toString() {
+        return Base64.getEncoder().encodeToString(toBytes());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof IndexKey)) {
+            return false;
+        }
+        IndexKey other = (IndexKey) o;
+        return hash == other.hash && length == other.length && first == other.first && second == other.second
+                && Arrays.equals(rest, other.rest);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * Compares the keys' bytes as unsigned values; a key that is a prefix of another comes first.
+     */
+    @Override
+    public int compareTo(IndexKey other) {
+        // padding is zero, so comparing whole words orders a prefix before or equal to the longer key
+        int cmp = Long.compareUnsigned(first, other.first);
+        if (cmp == 0) {
+            cmp = Long.compareUnsigned(second, other.second);
+        }
+        for (int i = 0; cmp == 0 && i < Math.min(rest.length, other.rest.length); i++) {
+            cmp = Long.compareUnsigned(rest[i], other.rest[i]);
+        }
+        return cmp != 0 ? cmp : Integer.compare(length, other.length);
+    }
+
+    // The 8 bytes starting at offset as a big-endian long, zero-padded past the end of the array
+    private static long getWord(byte[] bytes, int offset) {
+        long word = 0;
+        for (int i = 0; i < 8; i++) {
+            word <<= 8;
+            if (offset + i < bytes.length) {
+                word |= bytes[offset + i] & 0xff;
+            }
+        }
+        return word;
+    }
+}
@@ -1,30 +1,161 @@
 package search;
 
 import encryption.AES;
+import encryption.CipherBackend;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
 import java.util.logging.Logger;
 
+/**
+ * An encrypted inverted index: encrypted term -> encrypted document ID -> positions.
+ * <p>
+ * The index is safe for concurrent use. Any number of threads can add, delete and update documents at the same time;
+ * the expensive part of indexing (reading, tokenizing and encrypting) runs without any lock. The index itself is immutable:
+ * a change to a document builds a new version of the index that shares everything but the changed paths with the current one,
+ * and publishes it with a single compare-and-set, retrying if another writer published first.
+ * {@link #snapshot()} and {@link #newSearch()} take the current version, a point-in-time view in which every document
+ * is either fully present or absent, without waiting for writers or holding them back.
+ */
 public class InvertedIndex {
 
     private AES aes;
-    private Map<String, Map<String, Set<Integer>>> index;
+    private final AtomicReference<State> state; // the current version of the index
+    private volatile QueryCache queryCache = new QueryCache().bindTo(this);
     private final Logger logger = Logger.getLogger(getClass().getName());
+    private static final int BATCHES_PER_WORKER = 4;
 
     public InvertedIndex(byte[] key) {
-        aes = new AES(key);
-        index = new HashMap<>();
+        this(key, new HashMap<>());
     }
 
-    public InvertedIndex(byte[] key, Map<String, Map<String, Set<Integer>>> indexMap) {
-        aes = new AES(key);
-        index = indexMap;
+    public InvertedIndex(byte[] key, CipherBackend backend) {
+        this(key, new HashMap<>(), backend);
     }
 
-    public Map<String, Map<String, Set<Integer>>> getIndex() {
-        return index;
+    public InvertedIndex(byte[] key, Map<IndexKey, Map<IndexKey, PostingList>> indexMap) {
+        this(new AES(key), indexMap);
+    }
+
+    public InvertedIndex(byte[] key, Map<IndexKey, Map<IndexKey, PostingList>> indexMap, CipherBackend backend) {
+        this(new AES(key, backend), indexMap);
+    }
+
+    /*
+        The given index is copied into the immutable form, the posting lists themselves are immutable and shared.
+     */
+    InvertedIndex(AES aes, Map<IndexKey, Map<IndexKey, PostingList>> indexMap) {
+        this.aes = aes;
+        PersistentMap<IndexKey, PersistentMap<IndexKey, PostingList>> terms = PersistentMap.empty();
+        for (Map.Entry<IndexKey, Map<IndexKey, PostingList>> term : indexMap.entrySet()) {
+            if (!term.getValue().isEmpty()) {
+                terms = terms.with(term.getKey(), PersistentMap.copyOf(term.getValue()));
+            }
+        }
+        state = new AtomicReference<>(new State(terms, buildDocumentDictionary(indexMap), 0));
+    }
+
+    /**
+     * @return the current index; it is immutable, so later changes are not visible in it
+     */
+    public Map<IndexKey, Map<IndexKey, PostingList>> getIndex() {
+        return snapshot();
+    }
+
+    // Number of documents in the index
+    int getDocumentCount() {
+        return state.get().documents.size();
+    }
+
+    /**
+     * Takes a consistent point-in-time view of the index. The index is never changed in place,
+     * so this neither copies anything nor waits for writers.
+     *
+     * @return an unmodifiable view of the index
+     */
+    public Map<IndexKey, Map<IndexKey, PostingList>> snapshot() {
+        return Collections.unmodifiableMap(state.get().terms);
+    }
+
+    /*
+        Takes a snapshot as a segment whose document ordinals follow the ordinals assigned when the documents were added.
+        Document lengths are the token counts recorded when the documents were added, so the postings are not scanned for them.
+     */
+    MemorySegment toSegment() {
+        return toSegment(state.get());
+    }
+
+    private static MemorySegment toSegment(State state) {
+        DocumentDictionary.Entry[] entries = state.documents.getDocuments();
+        IndexKey[] document_keys = new IndexKey[entries.length];
+        int[] doc_lengths = new int[entries.length];
+        for (int d = 0; d < entries.length; d++) {
+            document_keys[d] = entries[d].key;
+            doc_lengths[d] = entries[d].length;
+        }
+        return new MemorySegment(Collections.unmodifiableMap(state.terms), document_keys, doc_lengths);
+    }
+
+    /**
+     * Opens a Search over a snapshot of the index. Later changes to the index are not visible to it.
+     * All Searches of the index share its query cache, and results cached by one are served to the others
+     * until the index changes.
+     *
+     * @return a Search using the key and cipher backend of this index
+     */
+    public Search newSearch() {
+        State current = state.get();
+        return new Search(toSegment(current), aes, queryCache, current.version);
+    }
+
+    /**
+     * @return the query cache shared by the Searches of this index
+     */
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Replaces the query cache for Searches opened from now on, e.g. with one of a different size.
+     * The cache must be new or already belong to this index.
+     *
+     * @param queryCache the new cache
+     * @throws IllegalArgumentException if the cache belongs to another index
+     */
+    public void setQueryCache(QueryCache queryCache) {
+        this.queryCache = queryCache.bindTo(this);
+    }
+
+    /**
+     * Writes the index to a binary segment file that can be opened with {@link Search#Search(Path, byte[])}.
+     * Terms and document IDs are stored as raw ciphertext bytes and positions as delta-encoded varints,
+     * which makes the file considerably smaller than the JSON form of the index.
+     *
+     * @param path the file to write
+     * @throws IOException if the file cannot be written or the segment would exceed 2 GB
+     */
+    public void writeSegment(Path path) throws IOException {
+        SegmentWriter.write(toSegment(), path);
+    }
+
+    /**
+     * Writes a snapshot of the index as JSON, streaming it instead of building the whole text in memory.
+     * The result can be loaded with {@link Search#Search(InputStream, byte[])} or {@link JsonIndex#read(InputStream)}.
+     *
+     * @param out the stream to write to; the stream is not closed
+     * @throws IOException if the stream cannot be written
+     */
+    public void writeJson(OutputStream out) throws IOException {
+        JsonIndex.write(snapshot(), out);
     }
 
     /**
@@ -38,56 +169,281 @@ public class InvertedIndex {
      * @throws Exception if an error occurs while adding the file to the index
      */
     public void add(String documentID, File file, int n) throws Exception {
-        if (file == null) {
-            throw new IOException("Either file does not not exist, or the file cannot be processed!");
+        add(documentID, file, Analyzer.standard(n));
+    }
+
+    /**
+     * Adds a new file to the inverted index, with the terms the given analyzer produces.
+     *
+     * @param documentID the ID of the document to add to the index
+     * @param file the file containing the document's content
+     * @param analyzer the analyzer, which searches of the index must use too
+     * @throws Exception if an error occurs while adding the file to the index
+     */
+    public void add(String documentID, File file, Analyzer analyzer) throws Exception {
+        EncryptedDocument document = encryptDocument(documentID, file, analyzer, new StageTimings());
+        commit(current -> mergeDocument(current, document));
+        logger.info("Document with ID: " + documentID + " added to the index!");
+    }
+
+    /**
+     * Adds many files to the inverted index in parallel on the common ForkJoinPool.
+     *
+     * @param documents the files to add by document ID
+     * @param n the size of the n-grams to generate
+     * @throws Exception if any of the files cannot be added, in which case the index is left unchanged
+     * @see #addAll(Map, Analyzer, Executor)
+     */
+    public void addAll(Map<String, File> documents, int n) throws Exception {
+        addAll(documents, Analyzer.standard(n), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param documents the files to add by document ID
+     * @param n the size of the n-grams to generate
+     * @param executor the executor that runs the batches
+     * @throws Exception if any of the files cannot be added, in which case the index is left unchanged
+     * @see #addAll(Map, Analyzer, Executor)
+     */
+    public void addAll(Map<String, File> documents, int n, Executor executor) throws Exception {
+        addAll(documents, Analyzer.standard(n), executor);
+    }
+
+    /**
+     * Adds many files to the inverted index in parallel on the common ForkJoinPool.
+     *
+     * @param documents the files to add by document ID
+     * @param analyzer the analyzer, which searches of the index must use too
+     * @throws Exception if any of the files cannot be added, in which case the index is left unchanged
+     * @see #addAll(Map, Analyzer, Executor)
+     */
+    public void addAll(Map<String, File> documents, Analyzer analyzer) throws Exception {
+        addAll(documents, analyzer, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Adds many files to the inverted index in parallel.
+     * The documents are split into batches; every batch is read, analyzed and encrypted on the executor
+     * into a partial index of its own, so workers never contend with each other. The partial indexes are merged into this
+     * index on the calling thread once every batch is done, one document at a time. Throughput and the time spent in every stage are logged.
+     *
+     * @param documents the files to add by document ID
+     * @param analyzer the analyzer, which searches of the index must use too
+     * @param executor the executor that runs the batches
+     * @throws Exception if any of the files cannot be added, in which case the index is left unchanged
+     */
+    public void addAll(Map<String, File> documents, Analyzer analyzer, Executor executor) throws Exception {
+        long start = System.nanoTime();
+        StageTimings timings = new StageTimings();
+
+        List<Map.Entry<String, File>> entries = new ArrayList<>(documents.entrySet());
+        int parallelism = executor instanceof ForkJoinPool ? ((ForkJoinPool) executor).getParallelism()
+                : Runtime.getRuntime().availableProcessors();
+        // a few batches per worker, so that a batch of large files does not hold up the others
+        int batch_size = Math.max(1, (entries.size() + BATCHES_PER_WORKER * parallelism - 1) / (BATCHES_PER_WORKER * parallelism));
+
+        List<CompletableFuture<List<EncryptedDocument>>> batches = new ArrayList<>();
+        for (int from = 0; from < entries.size(); from += batch_size) {
+            List<Map.Entry<String, File>> batch = entries.subList(from, Math.min(from + batch_size, entries.size()));
+            batches.add(CompletableFuture.supplyAsync(() -> {
+                List<EncryptedDocument> partial = new ArrayList<>();
+                for (Map.Entry<String, File> document : batch) {
+                    try {
+                        partial.add(encryptDocument(document.getKey(), document.getValue(), analyzer, timings));
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }
+                return partial;
+            }, executor));
         }
 
-        Map<String, Set<Integer>> tokens = Tokenizer.tokenize(file);
-        if (tokens.isEmpty()) {
-            throw new IllegalStateException("Invalid tokenization result. Tokens cannot be empty.");
+        List<List<EncryptedDocument>> partials = new ArrayList<>();
+        try {
+            for (CompletableFuture<List<EncryptedDocument>> batch : batches) {
+                partials.add(batch.join());
+            }
+        } catch (CompletionException e) {
+            batches.forEach(batch -> batch.cancel(false));
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
         }
 
-        Map<String, Set<Integer>> ngrams = NgramGenerator.generateNgrams(tokens, n);
-        if (ngrams.isEmpty()) {
-            throw new IllegalStateException("Invalid n-gram generation result. Ngrams cannot be empty.");
+        long merge_start = System.nanoTime();
+        for (List<EncryptedDocument> partial : partials) {
+            for (EncryptedDocument document : partial) {
+                commit(current -> mergeDocument(current, document));
+            }
         }
+        long end = System.nanoTime();
 
-        for (Map.Entry<String, Set<Integer>> ngram : ngrams.entrySet()) {
+        double seconds = (end - start) / 1e9;
+        logger.info(String.format("Added %d documents in %.2f s (%.1f documents/s) using %d batches. "
+                        + "Worker time: analyze %d ms, encrypt %d ms. Merge %d ms.",
+                entries.size(), seconds, entries.size() / seconds, batches.size(),
+                timings.analyze.sum() / 1_000_000, timings.encrypt.sum() / 1_000_000,
+                (end - merge_start) / 1_000_000));
+    }
 
-            String encrypted_token = aes.encrypt(ngram.getKey());
-            String encrypted_documentID = aes.encrypt(documentID);
+    /*
+        Applies a change to the current version of the index and publishes the result.
+        The change must be a function of the version it is given, as it runs again if another writer publishes first.
+     */
+    private void commit(UnaryOperator<State> change) {
+        while (true) {
+            State current = state.get();
+            State changed = change.apply(current);
+            if (changed == current || state.compareAndSet(current, changed)) {
+                return;
+            }
+        }
+    }
 
-            if (!index.containsKey(encrypted_token)) {
-                index.put(encrypted_token, new HashMap<>());
+    /*
+        Adds the postings of one document to the index and records its terms and length in the document's entry.
+        Adding to a document that is already in the index merges the postings of both contents.
+     */
+    private static State mergeDocument(State state, EncryptedDocument document) {
+        PersistentMap<IndexKey, PersistentMap<IndexKey, PostingList>> terms = state.terms;
+        for (Map.Entry<IndexKey, PostingList> term : document.terms.entrySet()) {
+            PersistentMap<IndexKey, PostingList> doc_index = terms.get(term.getKey());
+            if (doc_index == null) {
+                doc_index = PersistentMap.empty();
             }
-            if (!index.get(encrypted_token).containsKey(encrypted_documentID)) {
-                index.get(encrypted_token).put(encrypted_documentID, new HashSet<>());
+            PostingList positions = doc_index.get(document.documentID);
+            positions = positions == null ? term.getValue() : positions.union(term.getValue());
+            terms = terms.with(term.getKey(), doc_index.with(document.documentID, positions));
+        }
+        DocumentDictionary.Entry entry = state.documents.get(document.documentID);
+        Set<IndexKey> document_terms = new HashSet<>(document.terms.keySet());
+        int length = document.length;
+        if (entry != null) {
+            // the positions of both contents are kept, so the document is as long as the longer one
+            document_terms.addAll(entry.terms);
+            length = Math.max(length, entry.length);
+        }
+        DocumentDictionary documents = state.documents.put(document.documentID, length, document_terms);
+        return new State(terms, documents, state.version + 1);
+    }
+
+    /*
+        Removes one document from the index, pruning terms that no longer occur in any document.
+     */
+    private static State removeDocument(State state, IndexKey encrypted_documentID) {
+        DocumentDictionary.Entry document = state.documents.get(encrypted_documentID);
+        if (document == null) {
+            return state;
+        }
+        return new State(removePostings(state.terms, document), state.documents.remove(encrypted_documentID), state.version + 1);
+    }
+
+    /*
+        Removes the postings of a document but keeps its entry, and with it its ordinal, for new content.
+     */
+    private static State clearDocument(State state, IndexKey encrypted_documentID) {
+        DocumentDictionary.Entry document = state.documents.get(encrypted_documentID);
+        if (document == null) {
+            return state;
+        }
+        DocumentDictionary documents = state.documents.put(encrypted_documentID, 0, Collections.emptySet());
+        return new State(removePostings(state.terms, document), documents, state.version + 1);
+    }
+
+    // Removes the document from the posting maps of its terms, pruning terms that no longer occur in any document
+    private static PersistentMap<IndexKey, PersistentMap<IndexKey, PostingList>> removePostings(
+            PersistentMap<IndexKey, PersistentMap<IndexKey, PostingList>> terms, DocumentDictionary.Entry document) {
+        for (IndexKey term : document.terms) {
+            PersistentMap<IndexKey, PostingList> doc_index = terms.get(term);
+            if (doc_index != null) {
+                doc_index = doc_index.without(document.key);
+                terms = doc_index.isEmpty() ? terms.without(term) : terms.with(term, doc_index);
             }
-            index.get(encrypted_token).get(encrypted_documentID).addAll(ngram.getValue());
         }
-        logger.info("Document with ID: " + documentID + " added to the index!");
+        return terms;
+    }
+
+    /*
+        Builds the document dictionary of an existing index, a single pass over all of its postings.
+        Documents are numbered in the order they are first seen. The map form of an index has no token counts,
+        so a document's length is taken to be its largest position, as when the map is searched directly.
+     */
+    private static DocumentDictionary buildDocumentDictionary(Map<IndexKey, Map<IndexKey, PostingList>> index) {
+        Map<IndexKey, Integer> lengths = new LinkedHashMap<>();
+        Map<IndexKey, Set<IndexKey>> terms = new HashMap<>();
+        for (Map.Entry<IndexKey, Map<IndexKey, PostingList>> term : index.entrySet()) {
+            for (Map.Entry<IndexKey, PostingList> document : term.getValue().entrySet()) {
+                lengths.merge(document.getKey(), document.getValue().last(), Math::max);
+                terms.computeIfAbsent(document.getKey(), k -> new HashSet<>()).add(term.getKey());
+            }
+        }
+        DocumentDictionary documents = DocumentDictionary.EMPTY;
+        for (Map.Entry<IndexKey, Integer> document : lengths.entrySet()) {
+            documents = documents.put(document.getKey(), document.getValue(), terms.get(document.getKey()));
+        }
+        return documents;
+    }
+
+    /*
+        Reads, analyzes and encrypts one document and adds the time of every stage to timings.
+        Touches no shared state, so any number of documents can be prepared at once.
+        A file that cannot be read fails with its IOException, which addAll passes on as the cause.
+     */
+    private EncryptedDocument encryptDocument(String documentID, File file, Analyzer analyzer, StageTimings timings) throws Exception {
+        if (file == null) {
+            throw new IOException("Either file does not not exist, or the file cannot be processed!");
+        }
+
+        long start = System.nanoTime();
+        TermTable terms = new TermTable();
+        int length = 0; // the position of the last term, and at the end the number of tokens
+        try (Reader reader = Tokenizer.newReader(file)) {
+            TokenStream stream = analyzer.tokenStream(reader);
+            while (stream.incrementToken()) {
+                length += stream.positionIncrement();
+                terms.add(stream.buffer(), stream.length(), length);
+            }
+            stream.end();
+            length += stream.positionIncrement();
+        }
+        if (length == 0) {
+            throw new IllegalStateException("Invalid tokenization result. Tokens cannot be empty.");
+        }
+        if (terms.isEmpty()) {
+            throw new IllegalStateException("Invalid n-gram generation result. Ngrams cannot be empty.");
+        }
+        Map<String, PostingList> ngrams = terms.build();
+
+        long analyzed = System.nanoTime();
+        IndexKey encrypted_documentID = IndexKey.of(aes.encryptToBytes(documentID));
+        List<byte[]> encrypted_ngrams = aes.encryptAllToBytes(ngrams.keySet());
+        Map<IndexKey, PostingList> encrypted_terms = new HashMap<>();
+        int i = 0;
+        for (PostingList positions : ngrams.values()) {
+            encrypted_terms.merge(IndexKey.of(encrypted_ngrams.get(i++)), positions, PostingList::union);
+        }
+        long encrypted = System.nanoTime();
+
+        timings.analyze.add(analyzed - start);
+        timings.encrypt.add(encrypted - analyzed);
+        return new EncryptedDocument(encrypted_documentID, length, encrypted_terms);
     }
 
     /**
      * Removes all occurrences of the specified document ID from the index.
      * This method should be called when a document is deleted from the database.
+     * Only the terms of the document are visited, and terms that no longer occur in any document are removed.
      *
      * @param documentID the ID of the document to remove from the index
      * @throws Exception if an error occurs while deleting the file from the index
      */
     public void delete(String documentID) throws Exception {
-        String encrypted_documentID = aes.encrypt(documentID);
-
-        for (Map.Entry<String, Map<String, Set<Integer>>> term : index.entrySet()) {
-            // remove the entry for the given documentID, if it exists
-            term.getValue().remove(encrypted_documentID);
-        }
+        delete(IndexKey.of(aes.encryptToBytes(documentID)));
     }
 
     /**
      * Updates the inverted index with new document content.
      * This method first deletes the old document information from the index
-     * and then adds the new information for the same document.
+     * and then adds the new information for the same document. Both are published as one change,
+     * so other threads never see the document half updated. If the new content cannot be indexed, the old content is kept.
      *
      * @param documentID the ID of the document to update in the index
      * @param file the new file content to add to the index
@@ -95,7 +451,71 @@ public class InvertedIndex {
      * @throws Exception if an I/O error occurs while reading the file
      */
     public void update(String documentID, File file, int n) throws Exception{
-        delete(documentID);
-        add(documentID, file, n);
+        update(documentID, file, Analyzer.standard(n));
+    }
+
+    /**
+     * Same as {@link #update(String, File, int)}, with the terms the given analyzer produces.
+     *
+     * @param documentID the ID of the document to update in the index
+     * @param file the new file content to add to the index
+     * @param analyzer the analyzer, which searches of the index must use too
+     * @throws Exception if an I/O error occurs while reading the file
+     */
+    public void update(String documentID, File file, Analyzer analyzer) throws Exception {
+        update(encryptDocument(documentID, file, analyzer));
+    }
+
+    /*
+        Reads, analyzes and encrypts a document for update(EncryptedDocument), so that callers can do the expensive part
+        without holding their own locks.
+     */
+    EncryptedDocument encryptDocument(String documentID, File file, Analyzer analyzer) throws Exception {
+        return encryptDocument(documentID, file, analyzer, new StageTimings());
+    }
+
+    // Replaces the content of a document that encryptDocument has prepared, as one change
+    void update(EncryptedDocument document) {
+        commit(current -> mergeDocument(clearDocument(current, document.documentID), document));
+    }
+
+    // Removes a document by its encrypted ID
+    void delete(IndexKey encrypted_documentID) {
+        commit(current -> removeDocument(current, encrypted_documentID));
+    }
+
+    // The encrypted postings of one document, ready to be merged into the index
+    static class EncryptedDocument {
+        final IndexKey documentID;
+        final int length; // number of tokens
+        final Map<IndexKey, PostingList> terms; // encrypted term -> positions
+
+        EncryptedDocument(IndexKey documentID, int length, Map<IndexKey, PostingList> terms) {
+            this.documentID = documentID;
+            this.length = length;
+            this.terms = terms;
+        }
+    }
+
+    /*
+        One version of the index: the postings, the documents and the number of changes that led to it,
+        which tags the results in the query cache.
+     */
+    private static final class State {
+        final PersistentMap<IndexKey, PersistentMap<IndexKey, PostingList>> terms; // encrypted term -> encrypted document ID -> positions
+        final DocumentDictionary documents; // ordinal, length and encrypted terms of every document
+        final long version;
+
+        State(PersistentMap<IndexKey, PersistentMap<IndexKey, PostingList>> terms, DocumentDictionary documents, long version) {
+            this.terms = terms;
+            this.documents = documents;
+            this.version = version;
+        }
+    }
+
+    // Nanoseconds spent in every stage of indexing, summed over all workers
+    private static class StageTimings {
+        final LongAdder analyze = new LongAdder();
+        final LongAdder encrypt = new LongAdder();
     }
 }
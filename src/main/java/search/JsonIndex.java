@@ -0,0 +1,156 @@
+package search;
+
+import com.fasterxml.jackson.core.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes the JSON form of an index, {"encrypted term": {"encrypted document ID": [positions]}},
+ * with Jackson's streaming parser and generator.
+ * <p>
+ * Neither direction holds the JSON text or a boxed object tree in memory: positions are read into a reusable buffer
+ * and turned into compact {@link PostingList}s as they are parsed, and every encrypted document ID is kept only once
+ * however many terms it appears under.
+ * <p>
+ * JSON stores terms and document IDs as Base64 strings; this class converts them to and from {@link IndexKey}s,
+ * the form used everywhere else.
+ */
+public final class JsonIndex {
+
+    // field names are ciphertexts, interning or canonicalizing millions of them would only cost memory
+    private static final JsonFactory factory = JsonFactory.builder()
+            .disable(JsonFactory.Feature.INTERN_FIELD_NAMES)
+            .disable(JsonFactory.Feature.CANONICALIZE_FIELD_NAMES)
+            .build();
+
+    private JsonIndex() {
+    }
+
+    /**
+     * @param in the JSON index; the stream is not closed
+     * @return the index
+     * @throws IOException if the stream cannot be read or does not hold an index
+     */
+    public static Map<IndexKey, Map<IndexKey, PostingList>> read(InputStream in) throws IOException {
+        try (JsonParser parser = factory.createParser(in)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            return read(parser);
+        }
+    }
+
+    /**
+     * @param path a file holding a JSON index
+     * @return the index
+     * @throws IOException if the file cannot be read or does not hold an index
+     */
+    public static Map<IndexKey, Map<IndexKey, PostingList>> read(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            return read(in);
+        }
+    }
+
+    /**
+     * @param reader the JSON index; the reader is not closed
+     * @return the index
+     * @throws IOException if the reader fails or does not hold an index
+     */
+    public static Map<IndexKey, Map<IndexKey, PostingList>> read(Reader reader) throws IOException {
+        try (JsonParser parser = factory.createParser(reader)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            return read(parser);
+        }
+    }
+
+    /**
+     * @param index the index to write
+     * @param out the stream to write to; the stream is flushed but not closed
+     * @throws IOException if the stream cannot be written
+     */
+    public static void write(Map<IndexKey, Map<IndexKey, PostingList>> index, OutputStream out) throws IOException {
+        try (JsonGenerator generator = factory.createGenerator(out, JsonEncoding.UTF8)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartObject();
+            for (Map.Entry<IndexKey, Map<IndexKey, PostingList>> term : index.entrySet()) {
+                generator.writeFieldName(term.getKey().toString());
+                generator.writeStartObject();
+                for (Map.Entry<IndexKey, PostingList> document : term.getValue().entrySet()) {
+                    generator.writeFieldName(document.getKey().toString());
+                    generator.writeStartArray();
+                    PostingList.PositionIterator positions = document.getValue().iterator();
+                    for (int position = positions.next(); position != PostingList.PositionIterator.NO_MORE_POSITIONS;
+                         position = positions.next()) {
+                        generator.writeNumber(position);
+                    }
+                    generator.writeEndArray();
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * @param index the index to write
+     * @param path the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Map<IndexKey, Map<IndexKey, PostingList>> index, Path path) throws IOException {
+        try (OutputStream out = Files.newOutputStream(path)) {
+            write(index, out);
+        }
+    }
+
+    private static Map<IndexKey, Map<IndexKey, PostingList>> read(JsonParser parser) throws IOException {
+        Map<IndexKey, Map<IndexKey, PostingList>> index = new HashMap<>();
+        Map<IndexKey, IndexKey> document_keys = new HashMap<>(); // one instance of every encrypted document ID
+        int[] buffer = new int[16];
+
+        expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            IndexKey term = getKey(parser);
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            Map<IndexKey, PostingList> doc_index = new HashMap<>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                IndexKey document = document_keys.computeIfAbsent(getKey(parser), key -> key);
+                expect(parser, parser.nextToken(), JsonToken.START_ARRAY);
+                int length = 0;
+                JsonToken token;
+                while ((token = parser.nextToken()) == JsonToken.VALUE_NUMBER_INT) {
+                    if (length == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, 2 * length);
+                    }
+                    buffer[length++] = parser.getIntValue();
+                }
+                expect(parser, token, JsonToken.END_ARRAY);
+                doc_index.put(document, PostingList.fromBuffer(buffer, length));
+            }
+            expect(parser, parser.currentToken(), JsonToken.END_OBJECT);
+            index.put(term, doc_index);
+        }
+        expect(parser, parser.currentToken(), JsonToken.END_OBJECT);
+        return index;
+    }
+
+    // The current field name, a Base64 ciphertext
+    private static IndexKey getKey(JsonParser parser) throws IOException {
+        try {
+            return IndexKey.fromString(parser.getCurrentName());
+        } catch (IllegalArgumentException e) {
+            throw new JsonParseException(parser, "Key is not Base64: " + parser.getCurrentName(), e);
+        }
+    }
+
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws JsonParseException {
+        if (actual != expected) {
+            throw new JsonParseException(parser, "Expected " + expected + " but found " + actual);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package search;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Lowercases every token in place, one character at a time.
+ */
+public final class LowerCaseFilter extends TokenFilter {
+
+    // String.toLowerCase, which the tokenizer used to call, maps I to a dotless i in these languages
+    private static final boolean TURKIC_LOCALE = Arrays.asList("tr", "az").contains(Locale.getDefault().getLanguage());
+
+    public LowerCaseFilter(TokenStream input) {
+        super(input);
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (!input.incrementToken()) {
+            return false;
+        }
+        char[] buffer = buffer();
+        for (int i = 0, length = length(); i < length; i++) {
+            char c = buffer[i];
+            if (c >= 'A' && c <= 'Z') {
+                buffer[i] = TURKIC_LOCALE && c == 'I' ? '\u0131' : (char) (c + ('a' - 'A'));
+            } else if (c >= 0x80) {
+                buffer[i] = Character.toLowerCase(c);
+            }
+        }
+        return true;
+    }
+}
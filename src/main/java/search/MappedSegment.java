@@ -0,0 +1,205 @@
+package search;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/*
+    A segment file written by SegmentWriter, memory-mapped read-only.
+    Nothing but the footer is read when the segment is opened: terms and document keys are found by binary searches over sorted tables
+    and their postings are decoded from the mapping when a query asks for them, so the heap cost does not grow with the index.
+    All reads use absolute offsets, which keeps the shared buffer safe for concurrent readers.
+ */
+class MappedSegment implements Segment {
+
+    private final MappedByteBuffer buffer;
+    private final int num_docs;
+    private final int num_terms;
+    private final long total_doc_length;
+    private final int document_keys_section;
+    private final int key_offsets_section;
+    private final int key_order_section;
+    private final int doc_lengths_section;
+    private final int term_records_section;
+
+    MappedSegment(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Segment exceeds the maximum size of 2 GB: " + path);
+            }
+            if (size < SegmentWriter.HEADER_SIZE + SegmentWriter.FOOTER_SIZE) {
+                throw new IOException("Not a segment file: " + path);
+            }
+            // the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        int footer = buffer.capacity() - SegmentWriter.FOOTER_SIZE;
+        if (buffer.getInt(0) != SegmentWriter.MAGIC || buffer.getInt(footer + 44) != SegmentWriter.MAGIC) {
+            throw new IOException("Not a segment file: " + path);
+        }
+        if (buffer.getInt(4) != SegmentWriter.VERSION) {
+            throw new IOException("Unsupported segment version " + buffer.getInt(4) + ": " + path);
+        }
+
+        num_docs = buffer.getInt(footer);
+        num_terms = buffer.getInt(footer + 4);
+        total_doc_length = buffer.getLong(footer + 8);
+        document_keys_section = buffer.getInt(footer + 20);
+        key_offsets_section = buffer.getInt(footer + 24);
+        key_order_section = buffer.getInt(footer + 28);
+        doc_lengths_section = buffer.getInt(footer + 32);
+        term_records_section = buffer.getInt(footer + 40);
+    }
+
+    @Override
+    public int getNumberOfDocuments() {
+        return num_docs;
+    }
+
+    @Override
+    public long getTotalDocumentLength() {
+        return total_doc_length;
+    }
+
+    @Override
+    public int getDocumentLength(int document) {
+        return buffer.getInt(doc_lengths_section + 4 * document);
+    }
+
+    @Override
+    public IndexKey getDocumentKey(int document) {
+        int start = buffer.getInt(key_offsets_section + 4 * document);
+        int end = buffer.getInt(key_offsets_section + 4 * (document + 1));
+        byte[] key = new byte[end - start];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = buffer.get(document_keys_section + start + i);
+        }
+        return IndexKey.of(key);
+    }
+
+    @Override
+    public int getDocumentOrdinal(IndexKey key) {
+        int low = 0;
+        int high = num_docs - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int document = buffer.getInt(key_order_section + 4 * mid);
+            int start = buffer.getInt(key_offsets_section + 4 * document);
+            int end = buffer.getInt(key_offsets_section + 4 * (document + 1));
+            int cmp = compareKey(document_keys_section + start, end - start, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return document;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Collection<IndexKey> getTerms() {
+        List<IndexKey> terms = new ArrayList<>(num_terms);
+        for (int t = 0; t < num_terms; t++) {
+            int record = term_records_section + t * SegmentWriter.TERM_RECORD_SIZE;
+            int offset = buffer.getInt(record);
+            byte[] key = new byte[buffer.getInt(record + 4)];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = buffer.get(offset + i);
+            }
+            terms.add(IndexKey.of(key));
+        }
+        return terms;
+    }
+
+    @Override
+    public TermPostings getPostings(IndexKey term) {
+        int record = findTerm(term);
+        if (record < 0) {
+            return null;
+        }
+
+        int offset = buffer.getInt(record + 8);
+        int doc_freq = buffer.getInt(record + 12);
+        double max_term_freq = buffer.getDouble(record + 16);
+
+        int[] documents = new int[doc_freq];
+        PostingList[] positions = new PostingList[doc_freq];
+        int[] cursor = {offset};
+        int document = 0;
+        for (int i = 0; i < doc_freq; i++) {
+            document += readVInt(cursor);
+            documents[i] = document;
+            int count = readVInt(cursor);
+
+            // the positions are stored in the encoding of PostingList, find where they end and copy them as they are
+            int start = cursor[0];
+            int end = start;
+            for (int j = 0; j < count; end++) {
+                if (buffer.get(end) >= 0) {
+                    j++;
+                }
+            }
+            byte[] encoded = new byte[end - start];
+            for (int j = 0; j < encoded.length; j++) {
+                encoded[j] = buffer.get(start + j);
+            }
+            cursor[0] = end;
+            positions[i] = PostingList.fromEncoded(encoded, count);
+        }
+        return new TermPostings(documents, positions, BM25Proximity.getIDF(doc_freq, num_docs), max_term_freq);
+    }
+
+    /*
+        Binary search over the term records, which are sorted by the unsigned bytes of the term.
+        Returns the offset of the term's record, or -1 if the term is not in the segment.
+     */
+    private int findTerm(IndexKey key) {
+        int low = 0;
+        int high = num_terms - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int record = term_records_section + mid * SegmentWriter.TERM_RECORD_SIZE;
+            int cmp = compareKey(buffer.getInt(record), buffer.getInt(record + 4), key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return record;
+            }
+        }
+        return -1;
+    }
+
+    // Compares the stored key at the given offset with the given key as unsigned bytes
+    private int compareKey(int offset, int length, IndexKey key) {
+        int common = Math.min(length, key.length());
+        for (int i = 0; i < common; i++) {
+            int cmp = Integer.compare(buffer.get(offset + i) & 0xff, key.byteAt(i) & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, key.length());
+    }
+
+    // Reads a vint at cursor[0] and moves the cursor past it
+    private int readVInt(int[] cursor) {
+        int offset = cursor[0];
+        byte current = buffer.get(offset++);
+        int value = current & 0x7f;
+        for (int shift = 7; current < 0; shift += 7) {
+            current = buffer.get(offset++);
+            value |= (current & 0x7f) << shift;
+        }
+        cursor[0] = offset;
+        return value;
+    }
+}
@@ -0,0 +1,141 @@
+package search;
+
+import java.util.*;
+
+/*
+    A segment held on the heap, built from the map representation of an index
+    (encrypted term -> encrypted document ID -> positions), as produced by InvertedIndex or read from JSON.
+ */
+class MemorySegment implements Segment {
+
+    private final Map<IndexKey, TermPostings> postings; // encrypted term -> postings ordered by document ordinal
+    private final IndexKey[] document_keys; // encrypted document IDs by ordinal
+    private final Map<IndexKey, Integer> doc_ordinals; // ordinals by encrypted document ID
+    private final int[] doc_lengths; // document lengths by ordinal
+    private final long total_doc_length;
+
+    /*
+        Documents are numbered in the order they are first seen in the index. The map holds no document lengths,
+        so the largest position of a document stands in for its length.
+     */
+    MemorySegment(Map<IndexKey, Map<IndexKey, PostingList>> index) {
+        this(index, getDocumentKeys(index), null);
+    }
+
+    /*
+        Documents are numbered in the order of the given array, which must hold every document of the index.
+        The lengths are given by ordinal, or null to approximate them from the positions.
+     */
+    MemorySegment(Map<IndexKey, Map<IndexKey, PostingList>> index, IndexKey[] documents, int[] lengths) {
+        this.document_keys = documents;
+        this.doc_ordinals = new HashMap<>();
+        for (int d = 0; d < document_keys.length; d++) {
+            doc_ordinals.put(document_keys[d], d);
+        }
+        this.doc_lengths = lengths != null ? lengths : getDocumentLengths(index, doc_ordinals);
+        long total = 0;
+        for (int doc_length : doc_lengths) {
+            total += doc_length;
+        }
+        this.total_doc_length = total;
+        this.postings = buildPostings(index, doc_ordinals);
+    }
+
+    // The documents of the index in the order they are first seen
+    private static IndexKey[] getDocumentKeys(Map<IndexKey, Map<IndexKey, PostingList>> index) {
+        Set<IndexKey> keys = new LinkedHashSet<>();
+        for (Map<IndexKey, PostingList> doc_index : index.values()) {
+            keys.addAll(doc_index.keySet());
+        }
+        return keys.toArray(new IndexKey[0]);
+    }
+
+    /*
+        Approximate the length of every document, indexed by ordinal.
+     */
+    private static int[] getDocumentLengths(Map<IndexKey, Map<IndexKey, PostingList>> index, Map<IndexKey, Integer> doc_ordinals) {
+        int[] doc_lengths = new int[doc_ordinals.size()];
+        for (Map.Entry<IndexKey, Map<IndexKey, PostingList>> term : index.entrySet()) {
+            for (Map.Entry<IndexKey, PostingList> document : term.getValue().entrySet()) {
+                int ordinal = doc_ordinals.get(document.getKey());
+
+                // Update the document length with the highest position.
+                // The term with the highest position is a good approximation of the document length
+                doc_lengths[ordinal] = Math.max(doc_lengths[ordinal], document.getValue().last());
+            }
+        }
+        return doc_lengths;
+    }
+
+    /*
+        Converts every term's posting map into arrays ordered by document ordinal
+        and records the term's IDF and its largest term frequency component, the term's upper bound when pruning.
+     */
+    private Map<IndexKey, TermPostings> buildPostings(Map<IndexKey, Map<IndexKey, PostingList>> index, Map<IndexKey, Integer> doc_ordinals) {
+        Map<IndexKey, TermPostings> postings = new HashMap<>();
+        double avg_doc_len = (double) total_doc_length / document_keys.length;
+        for (Map.Entry<IndexKey, Map<IndexKey, PostingList>> term : index.entrySet()) {
+            Map<IndexKey, PostingList> doc_index = term.getValue();
+            if (doc_index.isEmpty()) {
+                continue;
+            }
+
+            long[] entries = new long[doc_index.size()]; // ordinal in the high bits, position in doc_index in the low bits
+            List<PostingList> doc_positions = new ArrayList<>(doc_index.values());
+            int i = 0;
+            for (IndexKey document : doc_index.keySet()) {
+                entries[i] = ((long) doc_ordinals.get(document) << 32) | i;
+                i++;
+            }
+            Arrays.sort(entries);
+
+            int[] documents = new int[entries.length];
+            PostingList[] positions = new PostingList[entries.length];
+            double max_term_freq = 0;
+            for (i = 0; i < entries.length; i++) {
+                documents[i] = (int) (entries[i] >>> 32);
+                positions[i] = doc_positions.get((int) entries[i]);
+                max_term_freq = Math.max(max_term_freq,
+                        BM25Proximity.getTermFrequency(positions[i].size(), doc_lengths[documents[i]], avg_doc_len));
+            }
+            double idf = BM25Proximity.getIDF(documents.length, document_keys.length);
+            postings.put(term.getKey(), new TermPostings(documents, positions, idf, max_term_freq));
+        }
+        return postings;
+    }
+
+    @Override
+    public int getDocumentOrdinal(IndexKey key) {
+        return doc_ordinals.getOrDefault(key, -1);
+    }
+
+    @Override
+    public Collection<IndexKey> getTerms() {
+        return postings.keySet();
+    }
+
+    @Override
+    public int getNumberOfDocuments() {
+        return document_keys.length;
+    }
+
+    @Override
+    public long getTotalDocumentLength() {
+        return total_doc_length;
+    }
+
+    @Override
+    public int getDocumentLength(int document) {
+        return doc_lengths[document];
+    }
+
+    @Override
+    public IndexKey getDocumentKey(int document) {
+        return document_keys[document];
+    }
+
+    @Override
+    public TermPostings getPostings(IndexKey term) {
+        return postings.get(term);
+    }
+}
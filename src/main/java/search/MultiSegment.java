@@ -0,0 +1,157 @@
+package search;
+
+import java.util.*;
+
+/*
+    A read-only view that presents several segments, minus their deleted documents, as one segment.
+    The live documents get dense ordinals in segment order, so postings stay sorted when they are concatenated.
+    Document counts, lengths and IDFs are computed over all live documents, which makes scores exactly the same
+    as if the live documents had been indexed into a single segment.
+    The view is used both to search across segments and, written out with SegmentWriter, to merge them.
+ */
+class MultiSegment implements Segment {
+
+    private final Segment[] segments;
+    private final int[][] live_ordinals; // per segment: view ordinal of every segment ordinal, -1 if deleted
+    private final int[] segment_starts; // first view ordinal of every segment
+    private final int[][] segment_ordinals; // per segment: segment ordinal of every view ordinal, relative to the segment's start
+    private final int num_docs;
+    private final long total_doc_length;
+    private final double avg_doc_len;
+
+    /*
+        Deleted documents are given per segment; the bit sets are read only while the view is built.
+     */
+    MultiSegment(List<? extends Segment> segments, List<BitSet> deleted) {
+        this.segments = segments.toArray(new Segment[0]);
+        this.live_ordinals = new int[this.segments.length][];
+        this.segment_starts = new int[this.segments.length];
+        this.segment_ordinals = new int[this.segments.length][];
+
+        int ordinal = 0;
+        long total = 0;
+        for (int s = 0; s < this.segments.length; s++) {
+            Segment segment = this.segments[s];
+            BitSet segment_deleted = deleted.get(s);
+            int size = segment.getNumberOfDocuments();
+            int[] live = new int[size];
+            int[] locals = new int[size - segment_deleted.cardinality()];
+            segment_starts[s] = ordinal;
+            for (int d = 0, i = 0; d < size; d++) {
+                if (segment_deleted.get(d)) {
+                    live[d] = -1;
+                } else {
+                    live[d] = ordinal++;
+                    locals[i++] = d;
+                    total += segment.getDocumentLength(d);
+                }
+            }
+            live_ordinals[s] = live;
+            segment_ordinals[s] = locals;
+        }
+        this.num_docs = ordinal;
+        this.total_doc_length = total;
+        this.avg_doc_len = (double) total / ordinal;
+    }
+
+    @Override
+    public int getNumberOfDocuments() {
+        return num_docs;
+    }
+
+    @Override
+    public long getTotalDocumentLength() {
+        return total_doc_length;
+    }
+
+    @Override
+    public int getDocumentLength(int document) {
+        int s = getSegment(document);
+        return segments[s].getDocumentLength(segment_ordinals[s][document - segment_starts[s]]);
+    }
+
+    @Override
+    public IndexKey getDocumentKey(int document) {
+        int s = getSegment(document);
+        return segments[s].getDocumentKey(segment_ordinals[s][document - segment_starts[s]]);
+    }
+
+    @Override
+    public int getDocumentOrdinal(IndexKey key) {
+        for (int s = 0; s < segments.length; s++) {
+            int document = segments[s].getDocumentOrdinal(key);
+            if (document >= 0 && live_ordinals[s][document] >= 0) {
+                return live_ordinals[s][document];
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Collection<IndexKey> getTerms() {
+        Set<IndexKey> terms = new HashSet<>();
+        for (Segment segment : segments) {
+            terms.addAll(segment.getTerms());
+        }
+        return terms;
+    }
+
+    /*
+        Concatenates the live postings of every segment.
+        The IDF and the largest term frequency component depend on the whole view, so they are computed here
+        rather than taken from the segments.
+     */
+    @Override
+    public TermPostings getPostings(IndexKey term) {
+        TermPostings[] parts = new TermPostings[segments.length];
+        int doc_freq = 0;
+        for (int s = 0; s < segments.length; s++) {
+            parts[s] = segments[s].getPostings(term);
+            if (parts[s] != null) {
+                doc_freq += parts[s].size();
+            }
+        }
+
+        int[] documents = new int[doc_freq];
+        PostingList[] positions = new PostingList[doc_freq];
+        int size = 0;
+        double max_term_freq = 0;
+        for (int s = 0; s < segments.length; s++) {
+            if (parts[s] == null) {
+                continue;
+            }
+            for (int i = 0; i < parts[s].size(); i++) {
+                int document = live_ordinals[s][parts[s].documents[i]];
+                if (document >= 0) {
+                    documents[size] = document;
+                    positions[size] = parts[s].positions[i];
+                    max_term_freq = Math.max(max_term_freq,
+                            BM25Proximity.getTermFrequency(positions[size].size(),
+                                    segments[s].getDocumentLength(parts[s].documents[i]), avg_doc_len));
+                    size++;
+                }
+            }
+        }
+        if (size == 0) {
+            return null;
+        }
+        if (size < doc_freq) {
+            documents = Arrays.copyOf(documents, size);
+            positions = Arrays.copyOf(positions, size);
+        }
+        return new TermPostings(documents, positions, BM25Proximity.getIDF(size, num_docs), max_term_freq);
+    }
+
+    // The segment holding the given view ordinal
+    private int getSegment(int document) {
+        int s = Arrays.binarySearch(segment_starts, document);
+        if (s < 0) {
+            return -s - 2;
+        }
+        // empty segments share their start with the next segment, take the last one
+        while (s + 1 < segment_starts.length && segment_starts[s + 1] == document) {
+            s++;
+        }
+        return s;
+    }
+}
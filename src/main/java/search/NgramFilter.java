@@ -0,0 +1,99 @@
+package search;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Replaces every token with its n-grams, as generated by {@link NgramGenerator}: consecutive chunks of n characters,
+ * or every window of n characters. All n-grams of a token are at the token's position.
+ * <p>
+ * An n of 0 keeps whole tokens. N-grams of a single character are dropped, as are whole tokens of a single character,
+ * unless short tokens are kept; a token that leaves no n-gram still takes up its position.
+ * An n of 1 or 2 is not supported and treated as 0.
+ */
+public final class NgramFilter extends TokenFilter {
+
+    private final static Logger logger = Logger.getLogger(NgramFilter.class.getName());
+
+    private final int n;
+    private final boolean sliding;
+    private final boolean keepShortTokens;
+    private char[] token = new char[32]; // the token being split, the shared buffer holds the current n-gram
+    private int[] ngrams = new int[16]; // offset and length of every n-gram of the token
+    private int count;
+    private int next;
+    private int pending_increment; // positions of tokens that left no n-gram
+    private final NgramGenerator.NgramConsumer collector = (chars, offset, length) -> {
+        if (2 * count + 2 > ngrams.length) {
+            ngrams = Arrays.copyOf(ngrams, 2 * ngrams.length);
+        }
+        ngrams[2 * count] = offset;
+        ngrams[2 * count + 1] = length;
+        count++;
+    };
+
+    /**
+     * @param input the tokens
+     * @param n the length of each n-gram, 0 for whole tokens
+     * @param sliding whether to generate every window of n characters instead of consecutive chunks
+     * @param keepShortTokens whether to keep whole tokens of less than two characters when n is 0
+     */
+    public NgramFilter(TokenStream input, int n, boolean sliding, boolean keepShortTokens) {
+        super(input);
+        if (n < 0) {
+            throw new IllegalArgumentException("N cannot be negative: " + n);
+        }
+        if (n == 1 || n == 2) {
+            logger.warning("N must be either 0 or an integer at least 3!");
+            logger.info("Setting n = 0");
+            n = 0;
+        }
+        this.n = n;
+        this.sliding = sliding;
+        this.keepShortTokens = keepShortTokens;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        while (next == count) {
+            if (!input.incrementToken()) {
+                return false;
+            }
+            pending_increment += positionIncrement();
+            if (n == 0 && keepShortTokens) {
+                setPositionIncrement(pending_increment);
+                pending_increment = 0;
+                return true;
+            }
+            int length = length();
+            if (length > token.length) {
+                token = new char[Math.max(length, 2 * token.length)];
+            }
+            System.arraycopy(buffer(), 0, token, 0, length);
+            count = 0;
+            next = 0;
+            NgramGenerator.forEachNgram(token, length, n, sliding, collector);
+        }
+        setTerm(token, ngrams[2 * next], ngrams[2 * next + 1]);
+        setPositionIncrement(next == 0 ? pending_increment : 0);
+        pending_increment = 0;
+        next++;
+        return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        count = 0;
+        next = 0;
+        pending_increment = 0;
+    }
+
+    @Override
+    public void end() throws IOException {
+        super.end();
+        setPositionIncrement(positionIncrement() + pending_increment);
+        pending_increment = 0;
+    }
+}
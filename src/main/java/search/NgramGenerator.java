@@ -1,70 +1,65 @@
 package search;
 
-import java.util.*;
-import java.util.logging.Logger;
+/*
+    Splits tokens into n-grams without regular expressions or substrings.
 
+    The n-grams of a token are handed out as slices of its char buffer, see NgramFilter.
+    Two kinds of n-grams are supported:
+    - chunks: consecutive, non-overlapping pieces of n characters, the last one possibly shorter.
+      This is what the index has always used, the pieces String.split("(?<=\\G.{n})") produced.
+    - sliding windows: every run of n consecutive characters, one per start offset.
+    A token of at most n characters is its own single n-gram. N-grams of a single character are dropped.
+    Characters are counted in code points, so a surrogate pair is never split.
+ */
 class NgramGenerator {
 
-    private final static Logger logger = Logger.getLogger(NgramGenerator.class.getName());
-
-    /**
-     * Generates n-grams for a given string.
-     * @param tokens the tokenized file
-     * @param n the length of each n-gram
-     * @return a map of n-grams
+    /*
+        Receives the n-grams of a token. The characters are only valid during the call.
      */
-    protected static Map<String, Set<Integer>> generateNgrams(Map<String, Set<Integer>> tokens, int n) {
-        Map<String, Set<Integer>> ngrams = new HashMap<>();
+    interface NgramConsumer {
+        void accept(char[] chars, int offset, int length);
+    }
 
-        if (n == 1 || n == 2) {
-            logger.warning("N must be either 0 or an integer at least 3!");
-            logger.info("Setting n = 0");
-            n = 0;
+    /*
+        Hands the n-grams of the first length characters of token to the consumer, in order. An n of 0 means whole tokens.
+     */
+    static void forEachNgram(char[] token, int length, int n, boolean sliding, NgramConsumer consumer) {
+        int end = n == 0 ? length : advance(token, length, 0, n);
+        if (end == length) {
+            if (length > 1) {
+                consumer.accept(token, 0, length);
+            }
+            return;
         }
 
-        for (Map.Entry<String, Set<Integer>> token : tokens.entrySet()) {
-            int ngram_length = Math.min(n, token.getKey().length());
-            // The regex ?<=\\G{n number of dots} splits every string into multiple strings of length n.
-            String[] token_parts = token.getKey()
-                    .split("(?<=\\G" + String.join("", Collections.nCopies(ngram_length, ".")) + ")");
-            for (String s: token_parts) {
-                if (s.length() > 1) {
-                    ngrams.put(s, token.getValue());
+        int start = 0;
+        if (sliding) {
+            // the window moves one code point at a time, its end stays n code points ahead of its start
+            while (true) {
+                consumer.accept(token, start, end - start);
+                if (end == length) {
+                    return;
                 }
+                start = advance(token, length, start, 1);
+                end = advance(token, length, end, 1);
             }
         }
-        return ngrams;
-    }
-
-    /**
-     * Generates n-grams for a given string.
-     * @param tokens the tokenized file
-     * @param n the length of each n-gram
-     * @return a list of n-grams
-     */
-    protected static List<String> generateNgramsQuery(List<String> tokens, int n) {
-        List<String> ngrams = new ArrayList<>();
-
-        if (n == 0) {
-            return tokens;
-        } else if (n == 1 || n == 2) {
-            logger.warning("N must be either 0 or an integer at least 3!");
-            logger.info("Setting n = 0");
-            return tokens;
+        while (start < length) {
+            if (end - start > 1) {
+                consumer.accept(token, start, end - start);
+            }
+            start = end;
+            end = advance(token, length, start, n);
         }
+    }
 
-        for (String token: tokens) {
-            int ngram_length = Math.min(n, token.length());
-            // The regex ?<=\\G{n number of dots} splits every string into multiple strings of length n.
-            String[] token_parts = token
-                    .split("(?<=\\G" + String.join("", Collections.nCopies(ngram_length, ".")) + ")");
-            for (String s: token_parts) {
-                if (s.length() > 1) {
-                    ngrams.add(s);
-                }
+    // The offset count code points after offset, or length if the text ends before that
+    private static int advance(char[] chars, int length, int offset, int count) {
+        for (int i = 0; i < count && offset < length; i++) {
+            if (Character.isHighSurrogate(chars[offset++]) && offset < length && Character.isLowSurrogate(chars[offset])) {
+                offset++;
             }
         }
-
-        return ngrams;
+        return offset;
     }
 }
@@ -0,0 +1,39 @@
+package search;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.text.Normalizer;
+
+/**
+ * Brings every token into a Unicode normalization form, so that e.g. a precomposed é and an e followed by a
+ * combining accent become the same term. ASCII tokens are normal in every form and are left alone without a check;
+ * other tokens are only copied when they are not normalized already.
+ */
+public final class NormalizationFilter extends TokenFilter {
+
+    private final Normalizer.Form form;
+
+    public NormalizationFilter(TokenStream input, Normalizer.Form form) {
+        super(input);
+        this.form = form;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (!input.incrementToken()) {
+            return false;
+        }
+        char[] buffer = buffer();
+        int length = length();
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] >= 0x80) {
+                CharBuffer token = CharBuffer.wrap(buffer, 0, length);
+                if (!Normalizer.isNormalized(token, form)) {
+                    setTerm(Normalizer.normalize(token, form));
+                }
+                break;
+            }
+        }
+        return true;
+    }
+}
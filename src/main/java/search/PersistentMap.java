@@ -0,0 +1,322 @@
+package search;
+
+import java.util.*;
+
+/*
+    An immutable hash map whose updates return a new map that shares all but O(log n) nodes with the old one,
+    a hash array mapped trie with 32-way nodes. Keys are hashed 5 bits per level; keys whose hashes are equal
+    end up in a collision node that is searched linearly.
+    Used for the versions of an InvertedIndex, so that a snapshot is a reference to the current version.
+    Values must not be null. The Map methods that modify the map throw UnsupportedOperationException.
+ */
+final class PersistentMap<K, V> extends AbstractMap<K, V> {
+
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+
+    private final Node root; // null when empty
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    static <K, V> PersistentMap<K, V> copyOf(Map<? extends K, ? extends V> map) {
+        PersistentMap<K, V> copy = empty();
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            copy = copy.with(entry.getKey(), entry.getValue());
+        }
+        return copy;
+    }
+
+    // This map with key mapped to value
+    PersistentMap<K, V> with(K key, V value) {
+        Objects.requireNonNull(value);
+        V old = get(key);
+        if (old == value) {
+            return this;
+        }
+        Node node = root == null ? BitmapNode.EMPTY : root;
+        return new PersistentMap<>(node.put(key, hash(key), 0, value), old == null ? size + 1 : size);
+    }
+
+    // This map without key
+    PersistentMap<K, V> without(Object key) {
+        if (root == null || get(key) == null) {
+            return this;
+        }
+        return new PersistentMap<>(root.remove(key, hash(key), 0), size - 1);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        return root == null ? null : (V) root.find(key, hash(key), 0);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new EntryIterator<>(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private static int hash(Object key) {
+        int hash = key.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    /*
+        A node keeps its entries in one array of pairs: a key and its value, or null and a child node.
+     */
+    private abstract static class Node {
+        final Object[] pairs;
+
+        Node(Object[] pairs) {
+            this.pairs = pairs;
+        }
+
+        abstract Object find(Object key, int hash, int shift);
+
+        abstract Node put(Object key, int hash, int shift, Object value);
+
+        // null if the node is left empty
+        abstract Node remove(Object key, int hash, int shift);
+    }
+
+    private static final class BitmapNode extends Node {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap; // the 5-bit hash chunks present, in the order of the pairs
+
+        BitmapNode(int bitmap, Object[] pairs) {
+            super(pairs);
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        Object find(Object key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = pairs[i];
+            if (k == null) {
+                return ((Node) pairs[i + 1]).find(key, hash, shift + 5);
+            }
+            return key.equals(k) ? pairs[i + 1] : null;
+        }
+
+        @Override
+        Node put(Object key, int hash, int shift, Object value) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                Object[] copy = new Object[pairs.length + 2];
+                System.arraycopy(pairs, 0, copy, 0, i);
+                copy[i] = key;
+                copy[i + 1] = value;
+                System.arraycopy(pairs, i, copy, i + 2, pairs.length - i);
+                return new BitmapNode(bitmap | bit, copy);
+            }
+            Object k = pairs[i];
+            Object v = pairs[i + 1];
+            if (k == null) {
+                Node child = ((Node) v).put(key, hash, shift + 5, value);
+                return child == v ? this : replace(i, null, child);
+            }
+            if (key.equals(k)) {
+                return v == value ? this : replace(i, k, value);
+            }
+            // two keys share the chunk at this level, move both one level down
+            return replace(i, null, pair(k, hash(k), v, key, hash, value, shift + 5));
+        }
+
+        @Override
+        Node remove(Object key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = pairs[i];
+            if (k == null) {
+                Node child = (Node) pairs[i + 1];
+                Node removed = child.remove(key, hash, shift + 5);
+                if (removed == child) {
+                    return this;
+                }
+                return removed != null ? replace(i, null, removed) : delete(i, bit);
+            }
+            return key.equals(k) ? delete(i, bit) : this;
+        }
+
+        private BitmapNode replace(int i, Object key, Object value) {
+            Object[] copy = pairs.clone();
+            copy[i] = key;
+            copy[i + 1] = value;
+            return new BitmapNode(bitmap, copy);
+        }
+
+        private BitmapNode delete(int i, int bit) {
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] copy = new Object[pairs.length - 2];
+            System.arraycopy(pairs, 0, copy, 0, i);
+            System.arraycopy(pairs, i + 2, copy, i, pairs.length - i - 2);
+            return new BitmapNode(bitmap & ~bit, copy);
+        }
+
+        // A node holding two keys that agree on all hash chunks before shift
+        private static Node pair(Object key1, int hash1, Object value1, Object key2, int hash2, Object value2, int shift) {
+            if (hash1 == hash2) {
+                return new CollisionNode(hash1, new Object[]{key1, value1, key2, value2});
+            }
+            // the hashes differ, so they differ in a chunk at or after shift and the shift stays below 32
+            return EMPTY.put(key1, hash1, shift, value1).put(key2, hash2, shift, value2);
+        }
+    }
+
+    /*
+        Keys whose hashes are all equal.
+     */
+    private static final class CollisionNode extends Node {
+        final int hash;
+
+        CollisionNode(int hash, Object[] pairs) {
+            super(pairs);
+            this.hash = hash;
+        }
+
+        @Override
+        Object find(Object key, int hash, int shift) {
+            int i = indexOf(key, hash);
+            return i < 0 ? null : pairs[i + 1];
+        }
+
+        @Override
+        Node put(Object key, int hash, int shift, Object value) {
+            if (hash != this.hash) {
+                // a different hash first differs at this level or below, nest this node
+                int bit = 1 << ((this.hash >>> shift) & 31);
+                return new BitmapNode(bit, new Object[]{null, this}).put(key, hash, shift, value);
+            }
+            int i = indexOf(key, hash);
+            if (i >= 0) {
+                if (pairs[i + 1] == value) {
+                    return this;
+                }
+                Object[] copy = pairs.clone();
+                copy[i + 1] = value;
+                return new CollisionNode(hash, copy);
+            }
+            Object[] copy = Arrays.copyOf(pairs, pairs.length + 2);
+            copy[pairs.length] = key;
+            copy[pairs.length + 1] = value;
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        Node remove(Object key, int hash, int shift) {
+            int i = indexOf(key, hash);
+            if (i < 0) {
+                return this;
+            }
+            if (pairs.length == 2) {
+                return null;
+            }
+            Object[] copy = new Object[pairs.length - 2];
+            System.arraycopy(pairs, 0, copy, 0, i);
+            System.arraycopy(pairs, i + 2, copy, i, pairs.length - i - 2);
+            return new CollisionNode(hash, copy);
+        }
+
+        private int indexOf(Object key, int hash) {
+            if (hash == this.hash) {
+                for (int i = 0; i < pairs.length; i += 2) {
+                    if (key.equals(pairs[i])) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+    }
+
+    /*
+        Walks the trie depth first, keeping the path from the root to the current node on a stack.
+     */
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        private final Node[] nodes = new Node[8]; // 32 bits at 5 per level and a collision node
+        private final int[] positions = new int[8];
+        private int depth = -1;
+        private Map.Entry<K, V> next;
+
+        EntryIterator(Node root) {
+            if (root != null) {
+                nodes[++depth] = root;
+            }
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K, V> entry = next;
+            advance();
+            return entry;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            while (depth >= 0) {
+                Node node = nodes[depth];
+                int i = positions[depth];
+                if (i == node.pairs.length) {
+                    positions[depth--] = 0;
+                    continue;
+                }
+                positions[depth] = i + 2;
+                if (node.pairs[i] == null) {
+                    nodes[++depth] = (Node) node.pairs[i + 1];
+                } else {
+                    next = new AbstractMap.SimpleImmutableEntry<>((K) node.pairs[i], (V) node.pairs[i + 1]);
+                    return;
+                }
+            }
+            next = null;
+        }
+    }
+}
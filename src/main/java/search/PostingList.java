@@ -0,0 +1,295 @@
+package search;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable, sorted set of term positions within one document.
+ * <p>
+ * Positions are stored as the gaps between consecutive positions, each written as a variable-length byte sequence
+ * (7 bits per byte, least significant group first), so a typical position costs one byte instead of a boxed Integer
+ * in a hash set. Lists longer than {@value #SKIP_INTERVAL} positions also keep a small skip table,
+ * which lets {@link PositionIterator#advance(int)} jump over whole blocks without decoding them.
+ * <p>
+ * In JSON a posting list is written as a plain array of positions, the same format the index had when positions were sets.
+ */
+public final class PostingList {
+
+    public static final PostingList EMPTY = new PostingList(new byte[0], 0, -1, null);
+
+    private static final int SKIP_INTERVAL = 32;
+
+    private final byte[] data; // variable-byte encoded gaps, the first gap is relative to 0
+    private final int size;
+    private final int last;
+    private final int[] skips; // value before the block and byte offset of the block, for every block but the first
+
+    private PostingList(byte[] data, int size, int last, int[] skips) {
+        this.data = data;
+        this.size = size;
+        this.last = last;
+        this.skips = skips;
+    }
+
+    /**
+     * @param positions the positions, in any order and possibly with duplicates
+     * @return a posting list of the distinct positions
+     */
+    public static PostingList of(int... positions) {
+        return fromBuffer(positions.clone(), positions.length);
+    }
+
+    /*
+        Builds a posting list from the first length entries of a scratch buffer, in any order and possibly with duplicates.
+        The buffer is sorted in place and can be reused afterwards.
+     */
+    static PostingList fromBuffer(int[] buffer, int length) {
+        Arrays.sort(buffer, 0, length);
+        int distinct = 0;
+        for (int i = 0; i < length; i++) {
+            if (i == 0 || buffer[i] != buffer[distinct - 1]) {
+                buffer[distinct++] = buffer[i];
+            }
+        }
+        return encode(buffer, distinct);
+    }
+
+    /*
+        Jackson entry point, an index stored as JSON holds every posting list as an array of positions.
+     */
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    static PostingList fromJson(int[] positions) {
+        return of(positions);
+    }
+
+    /*
+        Wraps positions that are already encoded in the format of this class,
+        e.g. copied straight out of a segment file.
+     */
+    static PostingList fromEncoded(byte[] data, int size) {
+        if (size == 0) {
+            return EMPTY;
+        }
+        int[] skips = size > SKIP_INTERVAL ? new int[2 * ((size - 1) / SKIP_INTERVAL)] : null;
+        int offset = 0;
+        int value = 0;
+        for (int i = 0; i < size; i++) {
+            if (skips != null && i > 0 && i % SKIP_INTERVAL == 0) {
+                int block = i / SKIP_INTERVAL - 1;
+                skips[2 * block] = value;
+                skips[2 * block + 1] = offset;
+            }
+            int gap = 0;
+            int shift = 0;
+            byte current;
+            do {
+                current = data[offset++];
+                gap |= (current & 0x7f) << shift;
+                shift += 7;
+            } while (current < 0);
+            value += gap;
+        }
+        return new PostingList(data, size, value, skips);
+    }
+
+    // Encodes the first length entries of strictly ascending, non-negative positions
+    private static PostingList encode(int[] positions, int length) {
+        if (length == 0) {
+            return EMPTY;
+        }
+        if (positions[0] < 0) {
+            throw new IllegalArgumentException("Positions cannot be negative: " + positions[0]);
+        }
+
+        byte[] buffer = new byte[5 * length];
+        int[] skips = length > SKIP_INTERVAL ? new int[2 * ((length - 1) / SKIP_INTERVAL)] : null;
+        int offset = 0;
+        int previous = 0;
+        for (int i = 0; i < length; i++) {
+            if (skips != null && i > 0 && i % SKIP_INTERVAL == 0) {
+                int block = i / SKIP_INTERVAL - 1;
+                skips[2 * block] = previous;
+                skips[2 * block + 1] = offset;
+            }
+            int gap = positions[i] - previous;
+            while ((gap & ~0x7f) != 0) {
+                buffer[offset++] = (byte) ((gap & 0x7f) | 0x80);
+                gap >>>= 7;
+            }
+            buffer[offset++] = (byte) gap;
+            previous = positions[i];
+        }
+        return new PostingList(Arrays.copyOf(buffer, offset), length, previous, skips);
+    }
+
+    /**
+     * @return the number of positions
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the largest position
+     * @throws NoSuchElementException if the list is empty
+     */
+    public int last() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return last;
+    }
+
+    /**
+     * @return the positions in ascending order
+     */
+    @JsonValue
+    public int[] toArray() {
+        int[] positions = new int[size];
+        PositionIterator iterator = iterator();
+        for (int i = 0; i < size; i++) {
+            positions[i] = iterator.next();
+        }
+        return positions;
+    }
+
+    /**
+     * @return a posting list of the positions that are in either list
+     */
+    public PostingList union(PostingList other) {
+        if (other.size == 0) {
+            return this;
+        }
+        if (size == 0) {
+            return other;
+        }
+
+        int[] merged = new int[size + other.size];
+        int length = 0;
+        PositionIterator left = iterator();
+        PositionIterator right = other.iterator();
+        int a = left.next();
+        int b = right.next();
+        while (a != PositionIterator.NO_MORE_POSITIONS || b != PositionIterator.NO_MORE_POSITIONS) {
+            if (a < b) {
+                merged[length++] = a;
+                a = left.next();
+            } else if (b < a) {
+                merged[length++] = b;
+                b = right.next();
+            } else {
+                merged[length++] = a;
+                a = left.next();
+                b = right.next();
+            }
+        }
+        return encode(merged, length);
+    }
+
+    /**
+     * @return an iterator over the positions in ascending order
+     */
+    public PositionIterator iterator() {
+        return new PositionIterator();
+    }
+
+    // The encoded positions, in the format read by fromEncoded
+    byte[] getEncoded() {
+        return data;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PostingList)) {
+            return false;
+        }
+        PostingList other = (PostingList) o;
+        return size == other.size && Arrays.equals(data, other.data);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(data);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    /**
+     * Iterates over the positions of a posting list in ascending order. Not thread-safe, every thread needs its own iterator.
+     */
+    public final class PositionIterator {
+
+        public static final int NO_MORE_POSITIONS = Integer.MAX_VALUE;
+
+        private int offset;
+        private int index;
+        private int position = -1;
+        private int value; // the last decoded position, the base of the next gap
+
+        private PositionIterator() {
+        }
+
+        /**
+         * @return the current position, -1 before the first call to next or advance
+         */
+        public int position() {
+            return position;
+        }
+
+        /**
+         * @return the next position, or NO_MORE_POSITIONS when the list is exhausted
+         */
+        public int next() {
+            if (index == size) {
+                return position = NO_MORE_POSITIONS;
+            }
+            int gap = 0;
+            int shift = 0;
+            byte current;
+            do {
+                current = data[offset++];
+                gap |= (current & 0x7f) << shift;
+                shift += 7;
+            } while (current < 0);
+            index++;
+            value += gap;
+            return position = value;
+        }
+
+        /**
+         * Moves to the first position that is at least target, if the iterator is not already there.
+         * @return the new current position, or NO_MORE_POSITIONS when the list is exhausted
+         */
+        public int advance(int target) {
+            if (position >= target) {
+                return position;
+            }
+            if (skips != null) {
+                // jump to the last block that starts after the current entry and whose preceding entries are all smaller than target
+                for (int block = index / SKIP_INTERVAL; block < skips.length / 2 && skips[2 * block] < target; block++) {
+                    index = (block + 1) * SKIP_INTERVAL;
+                    value = skips[2 * block];
+                    offset = skips[2 * block + 1];
+                }
+            }
+            int next;
+            do {
+                next = next();
+            } while (next < target);
+            return next;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package search;
+
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * A cache of ranked query results, shared by the {@link Search}es of one index.
+ * <p>
+ * Results are keyed by the query terms, i.e. the query after analysis and n-gram generation, and the number of
+ * documents asked for. Every entry is tagged with the version of the index it was computed on: an index bumps its version
+ * with every change that can alter search results, and an entry only serves Searches opened on the same version.
+ * Entries of older versions are dropped as soon as a Search of a newer version uses the cache.
+ * Versions are only comparable within one index, so a cache belongs to the first index it is used by and cannot
+ * be given to another one.
+ * <p>
+ * The cache holds at most maximumSize results, evicting the least recently used one when full,
+ * and results expire timeToLive after they were computed. A maximum size of 0 disables caching.
+ * The cache is safe for concurrent use.
+ */
+public class QueryCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 1000;
+    public static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofMinutes(10);
+
+    // rough object sizes of a 64-bit JVM with compressed references, for getMemoryFootprint
+    private static final int OBJECT_HEADER = 16;
+    private static final int REFERENCE = 4;
+    private static final int ENTRY_OVERHEAD = 4 * OBJECT_HEADER + 8 * REFERENCE; // map entry, key, value, TopDocs
+
+    private final int maximumSize;
+    private final long timeToLive; // in nanoseconds
+    private final LinkedHashMap<Key, CachedResult> cache;
+    private Object owner; // the index whose Searches use the cache, null until it is bound
+    private long version; // of the newest index seen
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long memoryFootprint; // estimated bytes of all entries
+
+    public QueryCache() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_TIME_TO_LIVE);
+    }
+
+    /**
+     * @param maximumSize the maximum number of results to keep, 0 to cache nothing
+     * @param timeToLive how long a result is served after it was computed
+     */
+    public QueryCache(int maximumSize, Duration timeToLive) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("Cache size cannot be negative: " + maximumSize);
+        }
+        if (timeToLive.isNegative() || timeToLive.isZero()) {
+            throw new IllegalArgumentException("Time to live must be positive: " + timeToLive);
+        }
+        this.maximumSize = maximumSize;
+        this.timeToLive = timeToLive.toNanos();
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedResult> eldest) {
+                if (size() > QueryCache.this.maximumSize) {
+                    evictions++;
+                    memoryFootprint -= eldest.getValue().footprint;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /*
+        Binds the cache to the given index, or the segment of a Search opened on a file.
+        Binding it to the index it already belongs to again is allowed.
+     */
+    synchronized QueryCache bindTo(Object index) {
+        if (owner != null && owner != index) {
+            throw new IllegalArgumentException("The query cache already belongs to another index");
+        }
+        owner = index;
+        return this;
+    }
+
+    /*
+        The cached result of the query terms and k on the given index version, or null.
+        A k of -1 stands for all matching documents.
+     */
+    synchronized TopDocs get(long version, List<String> terms, int k) {
+        checkVersion(version);
+        CachedResult entry = version == this.version ? cache.get(new Key(terms, k)) : null;
+        if (entry != null && System.nanoTime() - entry.created > timeToLive) {
+            remove(new Key(terms, k));
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.result;
+    }
+
+    /*
+        Caches the result of the query terms and k, computed on the given index version. The result must not change afterwards.
+     */
+    synchronized void put(long version, List<String> terms, int k, TopDocs result) {
+        checkVersion(version);
+        if (version != this.version || maximumSize == 0) {
+            return; // computed on an index that has changed since
+        }
+        Key key = new Key(terms, k);
+        CachedResult entry = new CachedResult(result, System.nanoTime(), getFootprint(terms, result));
+        remove(key);
+        memoryFootprint += entry.footprint;
+        cache.put(key, entry);
+    }
+
+    /**
+     * @return the number of queries answered from the cache
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return the number of queries that had to be scored
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return the share of queries answered from the cache, 0 before the first query
+     */
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    /**
+     * @return the number of results evicted because the cache was full
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of cached results
+     */
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return an estimate of the heap taken up by the cached results, in bytes
+     */
+    public synchronized long getMemoryFootprint() {
+        return memoryFootprint;
+    }
+
+    /**
+     * Drops all cached results. The statistics are kept.
+     */
+    public synchronized void clear() {
+        cache.clear();
+        memoryFootprint = 0;
+    }
+
+    // A newer index version makes every cached result stale
+    private void checkVersion(long version) {
+        if (version > this.version) {
+            this.version = version;
+            clear();
+        }
+    }
+
+    private void remove(Key key) {
+        CachedResult entry = cache.remove(key);
+        if (entry != null) {
+            memoryFootprint -= entry.footprint;
+        }
+    }
+
+    private static long getFootprint(List<String> terms, TopDocs result) {
+        long footprint = ENTRY_OVERHEAD;
+        for (String term : terms) {
+            footprint += getFootprint(term);
+        }
+        List<String> documentIDs = result.getDocumentIDs();
+        footprint += 2 * OBJECT_HEADER + (long) (terms.size() + documentIDs.size()) * REFERENCE; // lists
+        footprint += OBJECT_HEADER + 8L * documentIDs.size(); // scores
+        for (String documentID : documentIDs) {
+            footprint += getFootprint(documentID);
+        }
+        return footprint;
+    }
+
+    // A String and its byte array, assuming one byte per character as most IDs and terms are Latin-1
+    private static long getFootprint(String text) {
+        return 2 * OBJECT_HEADER + 8 + text.length();
+    }
+
+    private static final class Key {
+        final List<String> terms;
+        final int k;
+        final int hash;
+
+        Key(List<String> terms, int k) {
+            this.terms = terms;
+            this.k = k;
+            this.hash = 31 * terms.hashCode() + k;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && k == other.k && terms.equals(other.terms);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class CachedResult {
+        final TopDocs result;
+        final long created;
+        final long footprint;
+
+        CachedResult(TopDocs result, long created, long footprint) {
+            this.result = result;
+            this.created = created;
+            this.footprint = footprint;
+        }
+    }
+}
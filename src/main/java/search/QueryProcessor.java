@@ -1,5 +1,7 @@
 package search;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 class QueryProcessor {
 
@@ -7,21 +9,33 @@ class QueryProcessor {
         Tokenize query and generate n-grams if n > 0
      */
     protected static List<String> processQuery(String query, int n) {
-        List<String> tokens = Tokenizer.tokenizeQuery(query);
+        return processQuery(query, Analyzer.standard(n));
+    }
 
-        if (tokens.isEmpty()) {
-            throw new IllegalStateException("Invalid tokenization result. Tokens cannot be empty.");
-        }
+    /*
+        The terms of a query, in query order and with repetitions, as the analyzer produces them
+     */
+    protected static List<String> processQuery(String query, Analyzer analyzer) {
         List<String> ngrams = new ArrayList<>();
-        if (n > 0) {
-            ngrams = NgramGenerator.generateNgramsQuery(tokens, n);
-            if (ngrams.isEmpty()) {
-                throw new IllegalStateException("Invalid n-gram generation result. Ngrams cannot be empty.");
+        int tokens = 0;
+        try {
+            TokenStream stream = analyzer.queryTokenStream(query);
+            while (stream.incrementToken()) {
+                tokens += stream.positionIncrement();
+                ngrams.add(stream.term());
             }
-        } else {
-            ngrams = tokens;
+            stream.end();
+            tokens += stream.positionIncrement();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
 
+        if (tokens == 0) {
+            throw new IllegalStateException("Invalid tokenization result. Tokens cannot be empty.");
+        }
+        if (ngrams.isEmpty()) {
+            throw new IllegalStateException("Invalid n-gram generation result. Ngrams cannot be empty.");
+        }
         return ngrams;
     }
 }
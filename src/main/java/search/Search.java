@@ -1,23 +1,125 @@
 package search;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import encryption.AES;
+import encryption.CipherBackend;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+/**
+ * Searches an index. The index is loaded once, when the Search is created; after that a Search is immutable
+ * and can be shared by any number of threads.
+ * <p>
+ * Ranked results are kept in a {@link QueryCache}, so a repeated query is only scored once. A Search opened on a file
+ * has a cache of its own; the Searches of an {@link InvertedIndex} or {@link SegmentedIndex} share the cache of the index,
+ * which only serves them results computed on the same version of the index.
+ * <p>
+ * Queries whose terms have many postings are scored in parallel on the common fork/join pool,
+ * see {@link #withParallelism(ForkJoinPool, int)}.
+ */
 public class Search {
-    private final AES aes;
-    private Map<String, Map<String, Set<Integer>>> invertedIndex;
+    private static final int ALL_DOCUMENTS = -1; // the k of search(String, Analyzer) in the query cache
+    private final CiphertextCache ciphertextCache;
+    private final BM25Proximity bm25Proximity;
+    private final QueryCache queryCache;
+    private final long version; // of the index the Search was opened on
+    private final Logger logger = Logger.getLogger(getClass().getName());
 
     public Search(String index, byte[] key) {
-        aes = new AES(key);
-        convertIndex(index);
+        this(index, new AES(key));
+    }
+
+    /**
+     * @param index the serialized index
+     * @param key the key the index was built with
+     * @param backend the cipher backend the index was built with
+     */
+    public Search(String index, byte[] key, CipherBackend backend) {
+        this(index, new AES(key, backend));
+    }
+
+    /**
+     * Loads a JSON index from a stream without reading it into a String first, see {@link JsonIndex}.
+     * @param index the JSON index; the stream is not closed
+     * @param key the key the index was built with
+     * @throws IOException if the stream cannot be read or does not hold an index
+     */
+    public Search(InputStream index, byte[] key) throws IOException {
+        this(new MemorySegment(JsonIndex.read(index)), new AES(key));
+    }
+
+    /**
+     * @param index the JSON index; the stream is not closed
+     * @param key the key the index was built with
+     * @param backend the cipher backend the index was built with
+     * @throws IOException if the stream cannot be read or does not hold an index
+     */
+    public Search(InputStream index, byte[] key, CipherBackend backend) throws IOException {
+        this(new MemorySegment(JsonIndex.read(index)), new AES(key, backend));
+    }
+
+    /**
+     * Opens an index written by {@link InvertedIndex#writeSegment(Path)}. The file is memory-mapped,
+     * so opening it is cheap and postings are only read when a query needs them.
+     * @param segment the segment file
+     * @param key the key the index was built with
+     * @throws IOException if the file cannot be read or is not a segment file
+     */
+    public Search(Path segment, byte[] key) throws IOException {
+        this(new MappedSegment(segment), new AES(key));
+    }
+
+    /**
+     * @param segment the segment file
+     * @param key the key the index was built with
+     * @param backend the cipher backend the index was built with
+     * @throws IOException if the file cannot be read or is not a segment file
+     */
+    public Search(Path segment, byte[] key, CipherBackend backend) throws IOException {
+        this(new MappedSegment(segment), new AES(key, backend));
+    }
+
+    private Search(String index, AES aes) {
+        this(new MemorySegment(convertIndex(index)), aes);
+    }
+
+    Search(Segment segment, AES aes) {
+        this(segment, aes, new QueryCache().bindTo(segment), 0);
+    }
+
+    Search(Segment segment, AES aes, QueryCache queryCache, long version) {
+        ciphertextCache = new CiphertextCache(aes);
+        bm25Proximity = new BM25Proximity(segment, aes, ciphertextCache);
+        this.queryCache = queryCache;
+        this.version = version;
+    }
+
+    private Search(Search search, BM25Proximity bm25Proximity) {
+        this.ciphertextCache = search.ciphertextCache;
+        this.bm25Proximity = bm25Proximity;
+        this.queryCache = search.queryCache;
+        this.version = search.version;
+    }
+
+    /**
+     * A Search of the same index that scores large queries on the given pool. Scores and rankings are the same
+     * however a query is scored, so both Searches share their caches.
+     * @param pool the pool to score on, null to score every query on the calling thread
+     * @param parallelThreshold the number of postings of the query terms from which a query is split up;
+     *                          see {@link BM25Proximity#DEFAULT_PARALLEL_THRESHOLD}
+     * @return a new Search
+     */
+    public Search withParallelism(ForkJoinPool pool, int parallelThreshold) {
+        return new Search(this, new BM25Proximity(bm25Proximity, pool, parallelThreshold));
     }
 
     /**
@@ -27,8 +129,21 @@ public class Search {
      * @return list of document IDs that match the query
      */
     public List<String> search(String query, int n) {
-        BM25Proximity bm25Proximity = new BM25Proximity(invertedIndex, aes);
-        List<String> queryList = QueryProcessor.processQuery(query,n);
+        return search(query, Analyzer.standard(n));
+    }
+
+    /**
+     * Perform query search on an index built with the given analyzer.
+     * @param query the query
+     * @param analyzer the analyzer the index was built with
+     * @return list of document IDs that match the query
+     */
+    public List<String> search(String query, Analyzer analyzer) {
+        List<String> queryList = QueryProcessor.processQuery(query, analyzer);
+        TopDocs cached = queryCache.get(version, queryList, ALL_DOCUMENTS);
+        if (cached != null) {
+            return new ArrayList<>(cached.getDocumentIDs());
+        }
         Map<String, Double> rating = bm25Proximity.getBM25score(queryList.toArray(new String[0]));
 
         // Filter out entries with a value of 0 and sort the ratings by descending order of relevance score
@@ -38,21 +153,99 @@ public class Search {
                 .collect(Collectors.toList());
 
         List<String> sortedDocuments = new ArrayList<>();
+        double[] scores = new double[sortedRating.size()];
         for (Map.Entry<String, Double> entry : sortedRating) {
+            scores[sortedDocuments.size()] = entry.getValue();
             sortedDocuments.add(entry.getKey());
         }
+        queryCache.put(version, queryList, ALL_DOCUMENTS, new TopDocs(new ArrayList<>(sortedDocuments), scores, rating.size(), 0, 0));
         return sortedDocuments;
     }
 
-    // Convert index from string to map
-    private void convertIndex(String index) {
-        ObjectMapper mapper = new ObjectMapper();
+    /**
+     * Perform query search on an index and return only the k most relevant documents.
+     * The result equals the first k entries of {@link #search(String, int)}, but documents that cannot make it into
+     * the top k are skipped instead of scored.
+     * @param query the query
+     * @param n n must be the same n that the index was generated with.
+     * @param k the maximum number of documents to return
+     * @return list of at most k document IDs that match the query
+     */
+    public List<String> search(String query, int n, int k) {
+        return searchTopDocs(query, n, k).getDocumentIDs();
+    }
+
+    /**
+     * Same as {@link #search(String, int, int)} for an index built with the given analyzer.
+     * @param query the query
+     * @param analyzer the analyzer the index was built with
+     * @param k the maximum number of documents to return
+     * @return list of at most k document IDs that match the query
+     */
+    public List<String> search(String query, Analyzer analyzer, int k) {
+        return searchTopDocs(query, analyzer, k).getDocumentIDs();
+    }
+
+    /**
+     * Same as {@link #search(String, int, int)}, but also returns the scores and how much of the index was skipped.
+     * @param query the query
+     * @param n n must be the same n that the index was generated with.
+     * @param k the maximum number of documents to return
+     * @return the top k documents
+     */
+    public TopDocs searchTopDocs(String query, int n, int k) {
+        return searchTopDocs(query, Analyzer.standard(n), k);
+    }
+
+    /**
+     * Same as {@link #searchTopDocs(String, int, int)} for an index built with the given analyzer.
+     * A result served from the query cache carries the statistics of the search that computed it.
+     * @param query the query
+     * @param analyzer the analyzer the index was built with
+     * @param k the maximum number of documents to return
+     * @return the top k documents
+     */
+    public TopDocs searchTopDocs(String query, Analyzer analyzer, int k) {
+        List<String> queryList = QueryProcessor.processQuery(query, analyzer);
+        TopDocs topDocs = queryCache.get(version, queryList, k);
+        if (topDocs != null) {
+            return topDocs;
+        }
+        topDocs = bm25Proximity.getTopK(queryList.toArray(new String[0]), k);
+        logger.fine("Scored " + topDocs.getScoredDocuments() + " documents and skipped " + topDocs.getSkippedDocuments()
+                + " documents (" + topDocs.getSkippedPostings() + " postings) for the top " + k);
+        queryCache.put(version, queryList, k, topDocs);
+        return topDocs;
+    }
+
+    /**
+     * @return the cache of ranked results, with its hit rate and memory footprint
+     */
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * @return the number of query term encryptions served from the ciphertext cache
+     */
+    public long getCacheHitCount() {
+        return ciphertextCache.getHitCount();
+    }
+
+    /**
+     * @return the number of query term encryptions that had to run AES
+     */
+    public long getCacheMissCount() {
+        return ciphertextCache.getMissCount();
+    }
 
+    // Convert index from string to map. An index that cannot be parsed is treated as empty.
+    private static Map<IndexKey, Map<IndexKey, PostingList>> convertIndex(String index) {
         try {
-            TypeReference<Map<String, Map<String, Set<Integer>>>> typeRef = new TypeReference<>() {};
-            invertedIndex = mapper.readValue(index, typeRef);
-        } catch (JsonProcessingException e) {
+            return JsonIndex.read(new StringReader(index));
+        } catch (IOException e) {
             e.printStackTrace();
+            return Collections.emptyMap();
         }
     }
 }
@@ -0,0 +1,30 @@
+package search;
+
+import java.util.Collection;
+
+/*
+    A read-only view of an index that BM25Proximity scores against.
+    Documents are identified by dense ordinals 0 .. getNumberOfDocuments() - 1 and terms by their ciphertext.
+    Implementations must be safe for concurrent readers.
+ */
+interface Segment {
+
+    int getNumberOfDocuments();
+
+    // Sum of the lengths of all documents
+    long getTotalDocumentLength();
+
+    int getDocumentLength(int document);
+
+    // The encrypted document ID of the given ordinal
+    IndexKey getDocumentKey(int document);
+
+    // The ordinal of the given encrypted document ID, or -1 if the document is not in the segment
+    int getDocumentOrdinal(IndexKey key);
+
+    // The encrypted terms of the segment, in no particular order
+    Collection<IndexKey> getTerms();
+
+    // The postings of the given encrypted term, or null if the term is not in the segment
+    TermPostings getPostings(IndexKey term);
+}
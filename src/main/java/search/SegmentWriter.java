@@ -0,0 +1,158 @@
+package search;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/*
+    Writes a segment in the binary format read by MappedSegment. All numbers are big-endian.
+
+    header        int magic, int version
+    postings      per term, for every document in ordinal order: vint document delta, vint number of positions,
+                  vint position deltas in ascending order
+    document keys the raw encrypted document IDs, back to back in ordinal order
+    key offsets   int[num_docs + 1], start of every document key in the document keys section, relative to the section
+    key order     int[num_docs], the document ordinals sorted by the unsigned bytes of their keys
+    doc lengths   int[num_docs]
+    term keys     the raw encrypted terms, back to back in the same order as the term records
+    term records  num_terms records of TERM_RECORD_SIZE bytes, sorted by the unsigned bytes of the term:
+                  int key offset, int key length, int postings offset, int document frequency, double max_term_freq
+    footer        int num_docs, int num_terms, long total document length,
+                  int offsets of the postings, document keys, key offsets, key order, doc lengths, term keys and term records sections,
+                  int magic
+
+    Offsets are absolute file offsets unless stated otherwise, so a segment is limited to 2 GB.
+ */
+class SegmentWriter {
+
+    protected static final int MAGIC = 0x53454731; // "SEG1"
+    protected static final int VERSION = 2;
+    protected static final int HEADER_SIZE = 8;
+    protected static final int FOOTER_SIZE = 48;
+    protected static final int TERM_RECORD_SIZE = 24;
+
+    private SegmentWriter() {
+    }
+
+    /*
+        Writes any segment, e.g. a MemorySegment built from an index or a MultiSegment view of segments that are merged.
+        The postings of one term at a time are held in memory. Terms without live postings are left out.
+     */
+    protected static void write(Segment segment, Path path) throws IOException {
+        // sort the terms by their raw bytes so that the reader can binary search them
+        List<IndexKey> term_keys = new ArrayList<>(segment.getTerms());
+        Collections.sort(term_keys);
+
+        int num_docs = segment.getNumberOfDocuments();
+        int num_terms = 0;
+        int[] postings_offsets = new int[term_keys.size()];
+        int[] doc_freqs = new int[term_keys.size()];
+        double[] max_term_freqs = new double[term_keys.size()];
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            int postings_section = out.size();
+            for (IndexKey term_key : term_keys) {
+                TermPostings postings = segment.getPostings(term_key);
+                if (postings == null || postings.size() == 0) {
+                    continue;
+                }
+                int t = num_terms++;
+                term_keys.set(t, term_key); // move the written terms to the front, t never passes the current term
+                postings_offsets[t] = out.size();
+                doc_freqs[t] = postings.size();
+                max_term_freqs[t] = postings.max_term_freq;
+                int previous_document = 0;
+                for (int i = 0; i < postings.size(); i++) {
+                    writeVInt(out, postings.documents[i] - previous_document);
+                    previous_document = postings.documents[i];
+
+                    // a posting list is already stored as ascending position deltas
+                    writeVInt(out, postings.positions[i].size());
+                    out.write(postings.positions[i].getEncoded());
+                }
+                checkSize(out);
+            }
+
+            int document_keys_section = out.size();
+            int[] key_offsets = new int[num_docs + 1];
+            byte[][] document_keys = new byte[num_docs][];
+            for (int d = 0; d < num_docs; d++) {
+                document_keys[d] = segment.getDocumentKey(d).toBytes();
+                out.write(document_keys[d]);
+                key_offsets[d + 1] = key_offsets[d] + document_keys[d].length;
+            }
+            checkSize(out);
+
+            int key_offsets_section = out.size();
+            for (int key_offset : key_offsets) {
+                out.writeInt(key_offset);
+            }
+
+            int key_order_section = out.size();
+            Integer[] key_order = new Integer[num_docs];
+            for (int d = 0; d < num_docs; d++) {
+                key_order[d] = d;
+            }
+            Arrays.sort(key_order, (d1, d2) -> Arrays.compareUnsigned(document_keys[d1], document_keys[d2]));
+            for (int d : key_order) {
+                out.writeInt(d);
+            }
+
+            int doc_lengths_section = out.size();
+            for (int d = 0; d < num_docs; d++) {
+                out.writeInt(segment.getDocumentLength(d));
+            }
+
+            int term_keys_section = out.size();
+            for (int t = 0; t < num_terms; t++) {
+                out.write(term_keys.get(t).toBytes());
+            }
+            checkSize(out);
+
+            int term_records_section = out.size();
+            int key_offset = term_keys_section;
+            for (int t = 0; t < num_terms; t++) {
+                int key_length = term_keys.get(t).length();
+                out.writeInt(key_offset);
+                out.writeInt(key_length);
+                out.writeInt(postings_offsets[t]);
+                out.writeInt(doc_freqs[t]);
+                out.writeDouble(max_term_freqs[t]);
+                key_offset += key_length;
+            }
+
+            out.writeInt(num_docs);
+            out.writeInt(num_terms);
+            out.writeLong(segment.getTotalDocumentLength());
+            out.writeInt(postings_section);
+            out.writeInt(document_keys_section);
+            out.writeInt(key_offsets_section);
+            out.writeInt(key_order_section);
+            out.writeInt(doc_lengths_section);
+            out.writeInt(term_keys_section);
+            out.writeInt(term_records_section);
+            out.writeInt(MAGIC);
+            checkSize(out);
+        }
+    }
+
+    // Writes a non-negative int in 7-bit groups, least significant group first
+    private static void writeVInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    // DataOutputStream.size() saturates at Integer.MAX_VALUE, which is also the limit of the int offsets
+    private static void checkSize(DataOutputStream out) throws IOException {
+        if (out.size() == Integer.MAX_VALUE) {
+            throw new IOException("Segment exceeds the maximum size of 2 GB");
+        }
+    }
+}
@@ -0,0 +1,557 @@
+package search;
+
+import encryption.AES;
+import encryption.CipherBackend;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An index kept as a directory of immutable segment files, for collections that change a little at a time.
+ * <p>
+ * Added and updated documents are buffered in memory and written to a new, small segment by {@link #flush()},
+ * which also happens automatically once enough documents are buffered. Deleting a document only sets a bit in the
+ * tombstone bit set of the segment that holds it. A background thread merges segments of similar size (tiered merging)
+ * and drops deleted documents while doing so. Every document is therefore rewritten about log(n) times,
+ * and the number of segments a search has to visit only grows with the log of the collection size.
+ * <p>
+ * {@link #newSearch()} searches all segments, and the documents that are still buffered, as one index.
+ * The segment files and tombstones become durable on {@link #flush()} and {@link #close()}.
+ * All methods are thread-safe. Documents are read and encrypted before any lock is taken, and segment files are written
+ * without holding one, so opening a Search only waits for writers to publish documents that are already encrypted.
+ */
+public class SegmentedIndex implements Closeable {
+
+    private static final String MANIFEST = "segments";
+    private static final String SEGMENT_PREFIX = "seg_";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String DELETES_SUFFIX = ".del";
+    private static final int DEFAULT_MAX_BUFFERED_DOCUMENTS = 1000;
+    private static final int MERGE_FACTOR = 10; // number of segments of the same size tier that are merged into one
+
+    private final Path directory;
+    private final AES aes;
+    private final int maxBufferedDocuments;
+    private final Object flushLock = new Object(); // held by the one flush that may run at a time
+    private final List<SegmentFile> segments = new ArrayList<>(); // guarded by this
+    // replaced under this; writers read it without the lock only to encrypt, which all buffers do with the same key
+    private volatile InvertedIndex buffer;
+    private PendingSegment flushing; // guarded by this, the buffer that flush is writing, null if none
+    // guarded by this, merged segments whose files could not be deleted yet because a Search still maps them
+    private final Set<String> obsolete = new LinkedHashSet<>();
+    private long generation; // guarded by this, the number of the next segment file
+    private long flushedDocuments; // guarded by this
+    private long mergedDocuments; // guarded by this
+    private long version; // guarded by this, bumped by every change that can alter search results
+    private volatile QueryCache queryCache = new QueryCache().bindTo(this);
+    private final ExecutorService merger;
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    /**
+     * Opens the index in the given directory, or creates an empty one.
+     * @param directory the directory holding the segment files
+     * @param key the key the index is built with
+     * @throws IOException if the directory or one of its segments cannot be read
+     */
+    public SegmentedIndex(Path directory, byte[] key) throws IOException {
+        this(directory, new AES(key), DEFAULT_MAX_BUFFERED_DOCUMENTS);
+    }
+
+    public SegmentedIndex(Path directory, byte[] key, CipherBackend backend) throws IOException {
+        this(directory, new AES(key, backend), DEFAULT_MAX_BUFFERED_DOCUMENTS);
+    }
+
+    /**
+     * @param directory the directory holding the segment files
+     * @param key the key the index is built with
+     * @param backend the cipher backend the index is built with
+     * @param maxBufferedDocuments the number of buffered documents that triggers a flush to a new segment
+     * @throws IOException if the directory or one of its segments cannot be read
+     */
+    public SegmentedIndex(Path directory, byte[] key, CipherBackend backend, int maxBufferedDocuments) throws IOException {
+        this(directory, new AES(key, backend), maxBufferedDocuments);
+    }
+
+    private SegmentedIndex(Path directory, AES aes, int maxBufferedDocuments) throws IOException {
+        if (maxBufferedDocuments <= 0) {
+            throw new IllegalArgumentException("maxBufferedDocuments must be positive: " + maxBufferedDocuments);
+        }
+        this.directory = directory;
+        this.aes = aes;
+        this.maxBufferedDocuments = maxBufferedDocuments;
+        this.buffer = new InvertedIndex(aes, new HashMap<>());
+
+        Files.createDirectories(directory);
+        Path manifest = directory.resolve(MANIFEST);
+        Set<String> live = new HashSet<>();
+        if (Files.exists(manifest)) {
+            for (String name : Files.readAllLines(manifest)) {
+                if (name.isEmpty()) {
+                    continue;
+                }
+                BitSet deleted = Files.exists(getDeletesPath(name))
+                        ? BitSet.valueOf(Files.readAllBytes(getDeletesPath(name))) : new BitSet();
+                segments.add(new SegmentFile(name, new MappedSegment(getSegmentPath(name)), deleted));
+                live.add(name);
+                generation = Math.max(generation, Long.parseLong(name.substring(SEGMENT_PREFIX.length())) + 1);
+            }
+        }
+        // files of segments that were merged away but could not be deleted before the index was last closed
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SEGMENT_SUFFIX) || name.endsWith(DELETES_SUFFIX)) {
+                    String segment = name.substring(0, name.lastIndexOf('.'));
+                    if (!live.contains(segment)) {
+                        generation = Math.max(generation, Long.parseLong(segment.substring(SEGMENT_PREFIX.length())) + 1);
+                        obsolete.add(segment);
+                    }
+                }
+            }
+        }
+        deleteObsoleteFiles();
+
+        merger = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "segment-merger-" + directory.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduleMerge();
+    }
+
+    /**
+     * Adds a document to the index. A document that is already in the index is replaced.
+     *
+     * @param documentID the ID of the document to add to the index
+     * @param file the file containing the document's content
+     * @param n the size of the n-grams to generate
+     * @throws Exception if an error occurs while adding the file to the index
+     */
+    public void add(String documentID, File file, int n) throws Exception {
+        update(documentID, file, n);
+    }
+
+    /**
+     * Adds a document to the index, with the terms the given analyzer produces. A document that is already in the index is replaced.
+     *
+     * @param documentID the ID of the document to add to the index
+     * @param file the file containing the document's content
+     * @param analyzer the analyzer, which searches of the index must use too
+     * @throws Exception if an error occurs while adding the file to the index
+     */
+    public void add(String documentID, File file, Analyzer analyzer) throws Exception {
+        update(documentID, file, analyzer);
+    }
+
+    /**
+     * Replaces the content of a document. The document is added if it is not in the index yet.
+     * If the new content cannot be indexed, the old content is kept.
+     *
+     * @param documentID the ID of the document to update in the index
+     * @param file the new file content to add to the index
+     * @param n the length of n-grams to use for tokenization
+     * @throws Exception if an error occurs while adding the file to the index
+     */
+    public void update(String documentID, File file, int n) throws Exception {
+        update(documentID, file, Analyzer.standard(n));
+    }
+
+    /**
+     * Same as {@link #update(String, File, int)}, with the terms the given analyzer produces.
+     *
+     * @param documentID the ID of the document to update in the index
+     * @param file the new file content to add to the index
+     * @param analyzer the analyzer, which searches of the index must use too
+     * @throws Exception if an error occurs while adding the file to the index
+     */
+    public void update(String documentID, File file, Analyzer analyzer) throws Exception {
+        InvertedIndex.EncryptedDocument document = buffer.encryptDocument(documentID, file, analyzer);
+        synchronized (this) {
+            buffer.update(document);
+            deleteFromSegments(document.documentID);
+        }
+        flushIfFull();
+    }
+
+    /**
+     * Removes a document from the index.
+     *
+     * @param documentID the ID of the document to remove from the index
+     * @throws Exception if an error occurs while deleting the document from the index
+     */
+    public void delete(String documentID) throws Exception {
+        IndexKey encrypted_documentID = IndexKey.of(aes.encryptToBytes(documentID));
+        synchronized (this) {
+            buffer.delete(encrypted_documentID);
+            deleteFromSegments(encrypted_documentID);
+        }
+    }
+
+    /**
+     * Writes the buffered documents to a new segment and persists all deletes.
+     * @throws IOException if a segment file cannot be written
+     */
+    public void flush() throws IOException {
+        synchronized (flushLock) {
+            PendingSegment pending;
+            String name = null;
+            synchronized (this) {
+                // a pending segment is left behind by a flush that failed, and is written first
+                if (flushing == null && buffer.getDocumentCount() > 0) {
+                    flushing = new PendingSegment(buffer.toSegment());
+                    buffer = new InvertedIndex(aes, new HashMap<>());
+                }
+                pending = flushing;
+                if (pending != null) {
+                    name = getNextSegmentName();
+                }
+            }
+
+            // the pending segment stays searchable and only its deletes change, so it is written without the lock
+            MappedSegment written = null;
+            if (pending != null) {
+                SegmentWriter.write(pending.segment, getSegmentPath(name));
+                written = new MappedSegment(getSegmentPath(name));
+            }
+
+            synchronized (this) {
+                if (pending != null) {
+                    // documents deleted while the segment was written
+                    BitSet deleted = new BitSet();
+                    for (int d = pending.deleted.nextSetBit(0); d >= 0; d = pending.deleted.nextSetBit(d + 1)) {
+                        deleted.set(written.getDocumentOrdinal(pending.segment.getDocumentKey(d)));
+                    }
+                    SegmentFile result = new SegmentFile(name, written, deleted);
+                    result.dirty = !deleted.isEmpty();
+                    segments.add(result);
+                    flushing = null;
+                    flushedDocuments += pending.segment.getNumberOfDocuments();
+                    version++;
+                }
+                writeDeletes();
+                writeManifest();
+            }
+        }
+        scheduleMerge();
+    }
+
+    /**
+     * Opens a Search over the current state of the index, including documents that are not flushed yet.
+     * Later changes to the index are not visible to it.
+     *
+     * @return a Search over all live documents
+     */
+    public synchronized Search newSearch() {
+        List<Segment> views = new ArrayList<>();
+        List<BitSet> deleted = new ArrayList<>();
+        for (SegmentFile segment : segments) {
+            views.add(segment.segment);
+            deleted.add((BitSet) segment.deleted.clone());
+        }
+        if (flushing != null) {
+            views.add(flushing.segment);
+            deleted.add((BitSet) flushing.deleted.clone());
+        }
+        if (buffer.getDocumentCount() > 0) {
+            views.add(buffer.toSegment());
+            deleted.add(new BitSet());
+        }
+        return new Search(new MultiSegment(views, deleted), aes, queryCache, version);
+    }
+
+    /**
+     * @return the query cache shared by the Searches of this index
+     */
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Replaces the query cache for Searches opened from now on, e.g. with one of a different size.
+     * The cache must be new or already belong to this index.
+     *
+     * @param queryCache the new cache
+     * @throws IllegalArgumentException if the cache belongs to another index
+     */
+    public void setQueryCache(QueryCache queryCache) {
+        this.queryCache = queryCache.bindTo(this);
+    }
+
+    /**
+     * @return the number of segment files the index currently consists of
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Flushes the buffered documents and waits for running merges to finish.
+     * @throws IOException if a segment file cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        merger.shutdown();
+        try {
+            while (!merger.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.info("Waiting for segment merges to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        deleteObsoleteFiles();
+    }
+
+    private void flushIfFull() throws IOException {
+        boolean full;
+        synchronized (this) {
+            full = buffer.getDocumentCount() >= maxBufferedDocuments;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    // Marks the given encrypted document ID deleted in every segment that holds it. Must be called holding the lock.
+    private void deleteFromSegments(IndexKey encrypted_documentID) {
+        version++; // the buffer has just changed too
+        for (SegmentFile segment : segments) {
+            int document = segment.segment.getDocumentOrdinal(encrypted_documentID);
+            if (document >= 0 && !segment.deleted.get(document)) {
+                segment.deleted.set(document);
+                segment.dirty = true;
+            }
+        }
+        if (flushing != null) {
+            int document = flushing.segment.getDocumentOrdinal(encrypted_documentID);
+            if (document >= 0) {
+                flushing.deleted.set(document);
+            }
+        }
+    }
+
+    private void scheduleMerge() {
+        try {
+            merger.execute(this::merge);
+        } catch (RejectedExecutionException e) {
+            // the index is closing
+        }
+    }
+
+    /*
+        Runs on the merger thread. Keeps merging as long as the merge policy finds segments to merge.
+        Only picking the segments and swapping in the result hold the lock; the merged segment is written without it,
+        and documents deleted in the meantime are carried over to the merged segment when it is swapped in.
+     */
+    private void merge() {
+        while (true) {
+            List<SegmentFile> candidates;
+            List<BitSet> deleted = new ArrayList<>();
+            String name;
+            synchronized (this) {
+                candidates = findMerge();
+                if (candidates.isEmpty()) {
+                    return;
+                }
+                for (SegmentFile candidate : candidates) {
+                    candidate.merging = true;
+                    deleted.add((BitSet) candidate.deleted.clone());
+                }
+                name = getNextSegmentName();
+            }
+
+            long start = System.nanoTime();
+            try {
+                List<Segment> views = new ArrayList<>();
+                for (SegmentFile candidate : candidates) {
+                    views.add(candidate.segment);
+                }
+                MultiSegment view = new MultiSegment(views, deleted);
+                MappedSegment merged = null;
+                if (view.getNumberOfDocuments() > 0) {
+                    SegmentWriter.write(view, getSegmentPath(name));
+                    merged = new MappedSegment(getSegmentPath(name));
+                }
+
+                synchronized (this) {
+                    int position = segments.size();
+                    for (SegmentFile candidate : candidates) {
+                        position = Math.min(position, segments.indexOf(candidate));
+                    }
+                    segments.removeAll(candidates);
+                    version++; // the order of the documents, by which ties are broken, changes
+                    if (merged != null) {
+                        // documents deleted while the merge was running
+                        BitSet merged_deleted = new BitSet();
+                        for (int i = 0; i < candidates.size(); i++) {
+                            SegmentFile candidate = candidates.get(i);
+                            BitSet recent = (BitSet) candidate.deleted.clone();
+                            recent.andNot(deleted.get(i));
+                            for (int d = recent.nextSetBit(0); d >= 0; d = recent.nextSetBit(d + 1)) {
+                                int document = merged.getDocumentOrdinal(candidate.segment.getDocumentKey(d));
+                                if (document >= 0) {
+                                    merged_deleted.set(document);
+                                }
+                            }
+                        }
+                        SegmentFile result = new SegmentFile(name, merged, merged_deleted);
+                        result.dirty = !merged_deleted.isEmpty();
+                        segments.add(position, result);
+                        mergedDocuments += view.getNumberOfDocuments();
+                    }
+                    writeDeletes();
+                    writeManifest();
+                    logger.info(String.format("Merged %d segments with %d live documents into %s in %d ms. "
+                                    + "%d segments, write amplification %.2f",
+                            candidates.size(), view.getNumberOfDocuments(), name, (System.nanoTime() - start) / 1_000_000,
+                            segments.size(), (double) (flushedDocuments + mergedDocuments) / Math.max(1, flushedDocuments)));
+                }
+
+                synchronized (this) {
+                    candidates.forEach(candidate -> obsolete.add(candidate.name));
+                }
+                deleteObsoleteFiles();
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.SEVERE, "Merging segments into " + name + " failed", e);
+                synchronized (this) {
+                    if (segments.containsAll(candidates)) {
+                        candidates.forEach(candidate -> candidate.merging = false);
+                        try {
+                            Files.deleteIfExists(getSegmentPath(name));
+                        } catch (IOException ignored) {
+                            // an unreferenced segment file does no harm
+                        }
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    /*
+        Deletes the files of segments that were merged away. Searches opened before a merge keep reading the old segments,
+        and where the file system refuses to delete a file that is still mapped, as on Windows, the file is tried again
+        after the next merge, on close and when the index is opened again. A mapping is only released once the Searches
+        that use it have been garbage collected, so there is no count of readers to wait for.
+     */
+    private void deleteObsoleteFiles() {
+        List<String> names;
+        synchronized (this) {
+            names = new ArrayList<>(obsolete);
+        }
+        for (String name : names) {
+            try {
+                Files.deleteIfExists(getSegmentPath(name));
+                Files.deleteIfExists(getDeletesPath(name));
+                synchronized (this) {
+                    obsolete.remove(name);
+                }
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Segment " + name + " is still in use, deleting it later", e);
+            }
+        }
+    }
+
+    /*
+        Tiered merge policy: segments are grouped into tiers by the log of their number of live documents,
+        and MERGE_FACTOR segments of the lowest full tier are merged. A segment with more deleted than live documents
+        is rewritten on its own. Returns an empty list if there is nothing to merge.
+     */
+    private List<SegmentFile> findMerge() {
+        Map<Integer, List<SegmentFile>> tiers = new TreeMap<>();
+        for (SegmentFile segment : segments) {
+            if (!segment.merging) {
+                int live = segment.segment.getNumberOfDocuments() - segment.deleted.cardinality();
+                int tier = live <= 1 ? 0 : (int) (Math.log(live) / Math.log(MERGE_FACTOR));
+                tiers.computeIfAbsent(tier, t -> new ArrayList<>()).add(segment);
+            }
+        }
+        for (List<SegmentFile> tier : tiers.values()) {
+            if (tier.size() >= MERGE_FACTOR) {
+                return new ArrayList<>(tier.subList(0, MERGE_FACTOR));
+            }
+        }
+        for (SegmentFile segment : segments) {
+            if (!segment.merging && 2 * segment.deleted.cardinality() > segment.segment.getNumberOfDocuments()) {
+                return new ArrayList<>(Collections.singletonList(segment));
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    // Persists the tombstones that changed since they were last written. Must be called holding the lock.
+    private void writeDeletes() throws IOException {
+        for (SegmentFile segment : segments) {
+            if (segment.dirty) {
+                writeAtomically(getDeletesPath(segment.name), segment.deleted.toByteArray());
+                segment.dirty = false;
+            }
+        }
+    }
+
+    // Must be called holding the lock
+    private void writeManifest() throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        for (SegmentFile segment : segments) {
+            manifest.append(segment.name).append('\n');
+        }
+        writeAtomically(directory.resolve(MANIFEST), manifest.toString().getBytes());
+    }
+
+    // Writes to a temporary file first, so that a crash leaves either the old or the new content behind
+    private void writeAtomically(Path path, byte[] content) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, content);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Must be called holding the lock
+    private String getNextSegmentName() {
+        return SEGMENT_PREFIX + generation++;
+    }
+
+    private Path getSegmentPath(String name) {
+        return directory.resolve(name + SEGMENT_SUFFIX);
+    }
+
+    private Path getDeletesPath(String name) {
+        return directory.resolve(name + DELETES_SUFFIX);
+    }
+
+    // Buffered documents that flush is writing to a segment file, with the documents deleted since
+    private static class PendingSegment {
+        final MemorySegment segment;
+        final BitSet deleted = new BitSet();
+
+        PendingSegment(MemorySegment segment) {
+            this.segment = segment;
+        }
+    }
+
+    // A segment of the index with its deleted documents
+    private static class SegmentFile {
+        final String name;
+        final MappedSegment segment;
+        final BitSet deleted;
+        boolean dirty; // the deletes have changed since they were written
+        boolean merging;
+
+        SegmentFile(String name, MappedSegment segment, BitSet deleted) {
+            this.name = name;
+            this.segment = segment;
+            this.deleted = deleted;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package search;
+
+import java.io.IOException;
+
+/**
+ * Removes stop words. Stop words take up no position: the token after one gets the position the stop word would have had.
+ */
+public final class StopFilter extends TokenFilter {
+
+    private final StopWordSet stopWords;
+
+    public StopFilter(TokenStream input, StopWordSet stopWords) {
+        super(input);
+        this.stopWords = stopWords;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        while (input.incrementToken()) {
+            if (!stopWords.contains(buffer(), length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,101 @@
+package search;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * An immutable set of stop words that can be queried with a slice of a char array, so a word does not have to become
+ * a String to be looked up. Open addressing with linear probing over a table at most half full,
+ * hashed like String.hashCode.
+ * <p>
+ * Stop words come from the list bundled with the index ({@link #defaults()}), a collection, or a reader in the format
+ * of the bundled list: words separated by commas and line breaks.
+ */
+public final class StopWordSet {
+
+    /**
+     * No stop words at all.
+     */
+    public static final StopWordSet EMPTY = new StopWordSet(Collections.emptyList());
+
+    private static volatile StopWordSet defaults;
+
+    private final String[] table;
+    private final int mask;
+
+    private StopWordSet(Collection<String> words) {
+        int capacity = Integer.highestOneBit(Math.max(1, 2 * words.size()) - 1) << 1;
+        table = new String[Math.max(2, capacity)];
+        mask = table.length - 1;
+        for (String word : words) {
+            int slot = spread(word.hashCode()) & mask;
+            while (table[slot] != null && !table[slot].equals(word)) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = word;
+        }
+    }
+
+    /**
+     * @return the English stop words of stopWords.csv, which the index has always used
+     */
+    public static StopWordSet defaults() {
+        if (defaults == null) {
+            defaults = new StopWordSet(StopWordsReader.readStopWords());
+        }
+        return defaults;
+    }
+
+    /**
+     * @param words the stop words, compared with tokens as they are, i.e. usually lowercase
+     * @return a set of the given words
+     */
+    public static StopWordSet of(Collection<String> words) {
+        return new StopWordSet(words);
+    }
+
+    /**
+     * @param reader stop words separated by commas and line breaks; it is not closed
+     * @return a set of the words read
+     * @throws IOException if the reader fails
+     */
+    public static StopWordSet read(Reader reader) throws IOException {
+        return new StopWordSet(StopWordsReader.readStopWords(reader));
+    }
+
+    /**
+     * @return whether the first length characters of chars are a stop word
+     */
+    public boolean contains(char[] chars, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        for (int slot = spread(hash) & mask; table[slot] != null; slot = (slot + 1) & mask) {
+            if (matches(table[slot], chars, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether the word consists of the first length characters of chars
+    static boolean matches(String word, char[] chars, int length) {
+        if (word.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (word.charAt(i) != chars[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // String hashes of short words differ mostly in their low bits, mix in the high ones too
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
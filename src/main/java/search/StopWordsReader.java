@@ -14,18 +14,26 @@ class StopWordsReader {
      @return a list of stop words
      */
     protected static List<String> readStopWords() {
-        List<String> stopWords = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(
-                new InputStreamReader(Objects.requireNonNull(StopWordsReader.class.getResourceAsStream("/stopWords.csv"))))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] words = line.split(",");
-                for (String word : words) {
-                    stopWords.add(word.trim());
-                }
-            }
+        try (Reader reader = new InputStreamReader(Objects.requireNonNull(StopWordsReader.class.getResourceAsStream("/stopWords.csv")))) {
+            return readStopWords(reader);
         } catch (IOException e) {
             System.err.println("Failed to read stop words file: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    /*
+        Reads stop words separated by commas and line breaks, trimming white space around every word.
+     */
+    static List<String> readStopWords(Reader reader) throws IOException {
+        List<String> stopWords = new ArrayList<>();
+        BufferedReader br = new BufferedReader(reader);
+        String line;
+        while ((line = br.readLine()) != null) {
+            String[] words = line.split(",");
+            for (String word : words) {
+                stopWords.add(word.trim());
+            }
         }
         return stopWords;
     }
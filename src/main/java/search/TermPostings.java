@@ -0,0 +1,33 @@
+package search;
+
+import java.util.Arrays;
+
+/*
+    The postings of one term: the ordinals of the documents containing it in ascending order,
+    the term's positions in each of those documents, the term's IDF
+    and the largest BM25 term frequency component over those documents, used as the term's upper bound when pruning.
+ */
+class TermPostings {
+
+    protected final int[] documents;
+    protected final PostingList[] positions;
+    protected final double idf;
+    protected final double max_term_freq;
+
+    TermPostings(int[] documents, PostingList[] positions, double idf, double max_term_freq) {
+        this.documents = documents;
+        this.positions = positions;
+        this.idf = idf;
+        this.max_term_freq = max_term_freq;
+    }
+
+    // Number of documents containing the term
+    protected int size() {
+        return documents.length;
+    }
+
+    // Index of the given document in this posting list, or a negative value if the term does not appear in it
+    protected int indexOf(int document) {
+        return Arrays.binarySearch(documents, document);
+    }
+}
@@ -0,0 +1,94 @@
+package search;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+    Collects the positions of every distinct term of a document as the analyzer hands them out.
+    Terms are looked up by their characters, open addressing with linear probing,
+    so a String is only made the first time a term occurs.
+ */
+class TermTable {
+    private String[] keys = new String[64];
+    private PositionsBuilder[] values = new PositionsBuilder[64];
+    private int size;
+
+    void add(char[] term, int length, int position) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + term[i];
+        }
+        int mask = keys.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (keys[slot] != null) {
+            if (StopWordSet.matches(keys[slot], term, length)) {
+                values[slot].add(position);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = new String(term, 0, length);
+        values[slot] = new PositionsBuilder();
+        values[slot].add(position);
+        if (++size > keys.length / 2) {
+            grow();
+        }
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    Map<String, PostingList> build() {
+        Map<String, PostingList> terms = new HashMap<>();
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != null) {
+                terms.put(keys[slot], values[slot].build());
+            }
+        }
+        return terms;
+    }
+
+    private void grow() {
+        String[] old_keys = keys;
+        PositionsBuilder[] old_values = values;
+        keys = new String[2 * old_keys.length];
+        values = new PositionsBuilder[keys.length];
+        int mask = keys.length - 1;
+        for (int i = 0; i < old_keys.length; i++) {
+            if (old_keys[i] != null) {
+                int hash = old_keys[i].hashCode();
+                int slot = (hash ^ (hash >>> 16)) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = old_keys[i];
+                values[slot] = old_values[i];
+            }
+        }
+    }
+
+    /*
+        Collects the positions of one term. Positions are handed out in increasing order while the document is read,
+        so they can be appended without sorting; the n-grams of one token share its position, which is only kept once.
+     */
+    private static class PositionsBuilder {
+        private int[] positions = new int[4];
+        private int size;
+
+        void add(int position) {
+            if (size > 0 && positions[size - 1] == position) {
+                return;
+            }
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, 2 * size);
+            }
+            positions[size++] = position;
+        }
+
+        PostingList build() {
+            return PostingList.fromBuffer(positions, size);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package search;
+
+import java.io.IOException;
+
+/**
+ * A token stream that transforms, removes or adds to the tokens of another stream. It shares the token attributes
+ * of its input, so a filter that leaves a token as it is does not touch it at all.
+ */
+public abstract class TokenFilter extends TokenStream {
+
+    protected final TokenStream input;
+
+    protected TokenFilter(TokenStream input) {
+        super(input);
+        this.input = input;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        input.reset();
+    }
+
+    @Override
+    public void end() throws IOException {
+        input.end();
+    }
+}
@@ -0,0 +1,124 @@
+package search;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A stream of tokens: a {@link Tokenizer} as its source, optionally wrapped in {@link TokenFilter}s.
+ * <p>
+ * Streams do not create an object per token. The current token is a set of attributes that the source and every filter
+ * on it share and overwrite with each call to {@link #incrementToken()}: its characters in {@link #buffer()},
+ * their number, and its position increment. The characters are only valid until the next call.
+ * <p>
+ * A stream is used by calling {@link #reset()}, then {@link #incrementToken()} until it returns false,
+ * then {@link #end()}. The position of a token is the sum of the position increments up to and including it.
+ * Streams are not thread-safe.
+ */
+public abstract class TokenStream {
+
+    private final Attributes attributes;
+
+    // A source, with attributes of its own
+    protected TokenStream() {
+        attributes = new Attributes();
+    }
+
+    // A filter, sharing the attributes of its input
+    protected TokenStream(TokenStream input) {
+        attributes = input.attributes;
+    }
+
+    /**
+     * Moves to the next token.
+     * @return false if there are no more tokens
+     * @throws IOException if the text cannot be read
+     */
+    public abstract boolean incrementToken() throws IOException;
+
+    /**
+     * Prepares the stream for a new text. Must be called before the first token.
+     * @throws IOException if the text cannot be read
+     */
+    public void reset() throws IOException {
+        attributes.length = 0;
+        attributes.position_increment = 0;
+    }
+
+    /**
+     * Called after the last token. Sets the position increment to the positions taken up by tokens
+     * that followed the last token but were left out, so that the final position is the number of positions of the text.
+     * @throws IOException if the text cannot be read
+     */
+    public void end() throws IOException {
+        attributes.position_increment = 0;
+    }
+
+    /**
+     * @return the characters of the current token; only the first {@link #length()} are part of it
+     */
+    public final char[] buffer() {
+        return attributes.buffer;
+    }
+
+    /**
+     * @return the number of characters of the current token
+     */
+    public final int length() {
+        return attributes.length;
+    }
+
+    /**
+     * @return the position of the current token relative to the previous one, 0 for a token at the same position
+     */
+    public final int positionIncrement() {
+        return attributes.position_increment;
+    }
+
+    /**
+     * @return the current token as a new String
+     */
+    public final String term() {
+        return new String(attributes.buffer, 0, attributes.length);
+    }
+
+    /**
+     * Grows the buffer to hold at least the given number of characters, keeping its content.
+     * @return the buffer, which may be a new array
+     */
+    protected final char[] resizeBuffer(int capacity) {
+        if (capacity > attributes.buffer.length) {
+            attributes.buffer = Arrays.copyOf(attributes.buffer, Math.max(capacity, 2 * attributes.buffer.length));
+        }
+        return attributes.buffer;
+    }
+
+    protected final void setLength(int length) {
+        attributes.length = length;
+    }
+
+    protected final void setPositionIncrement(int increment) {
+        attributes.position_increment = increment;
+    }
+
+    /**
+     * Replaces the characters of the current token with a copy of the given ones.
+     */
+    protected final void setTerm(char[] chars, int offset, int length) {
+        System.arraycopy(chars, offset, resizeBuffer(length), 0, length);
+        attributes.length = length;
+    }
+
+    /**
+     * Replaces the characters of the current token with the given text.
+     */
+    protected final void setTerm(String text) {
+        text.getChars(0, text.length(), resizeBuffer(text.length()), 0);
+        attributes.length = text.length();
+    }
+
+    private static final class Attributes {
+        char[] buffer = new char[32];
+        int length;
+        int position_increment;
+    }
+}
@@ -1,60 +1,235 @@
 package search;
 
-import java.io.*;
-import java.util.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 
-class Tokenizer {
-    private static final List<String> stopWords = StopWordsReader.readStopWords();
+/**
+ * The source of a token stream: splits text into words, as they occur. Tokens are neither lowercased nor filtered,
+ * that is up to the filters of an {@link Analyzer}.
+ * <p>
+ * Text is scanned character by character: words are runs of [a-zA-Z0-9_] and everything else separates them,
+ * exactly the words String.split("\\W+") finds. In Unicode mode words are runs of letters, digits, marks and
+ * connector punctuation of the Basic Multilingual Plane instead, much as with the (?U) flag.
+ * The split quirks are kept too, so positions match indexes built before the scanner: an empty line, and a line
+ * that starts with a separator and has a word later on, contribute an empty token "" that takes up a position.
+ * A line of nothing but separators contributes no token.
+ * Documents are split into lines at \n, \r and \r\n like BufferedReader.readLine; a query is a single line.
+ * <p>
+ * Every token has a position increment of 1. Words are read into the token buffer directly and the input is read in
+ * chunks into a buffer that is kept, so a tokenizer allocates nothing once it has seen its longest word.
+ */
+public final class Tokenizer extends TokenStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final boolean unicode;
+    private Reader reader; // null when the whole text is in the chunk
+    private boolean lines;
+    private char[] chunk = new char[BUFFER_SIZE];
+    private int offset;
+    private int limit;
+    private boolean exhausted; // the reader has no more characters
+    private boolean finished; // the end of the text has been handled
+
+    private boolean in_word;
+    private int line_length; // characters seen in the current line
+    private boolean leading_separator; // the current line starts with a separator
+    private boolean line_has_word;
+    private boolean skip_line_feed; // the previous character was \r
 
     /**
+     * A tokenizer for ASCII words.
+     */
+    public Tokenizer() {
+        this(false);
+    }
 
-     Tokenizes the given file by splitting it into words and removing the stop words. The resulting tokens are stored
-     in a map along with their positions in the file.
-     @param file The file to tokenize.
-     @return A map containing the tokens and their positions.
+    /**
+     * @param unicode whether words are made of Unicode letters and digits rather than ASCII ones
      */
-    protected static Map<String, Set<Integer>> tokenize(File file) {
-        Map<String, Set<Integer>> tokens = new HashMap<>();
-        int position = 0;
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] words = line.split("\\W+"); // split by non-word characters
-                for (String word : words) {
-                    String word_lower = word.toLowerCase();
-                    if (!stopWords.contains(word_lower)) { // check whether the word is in the stopWords list
-                        position++;
-                        if(!tokens.containsKey(word_lower)){
-                            tokens.put(word_lower, new HashSet<>());
-                        }
-                        tokens.get(word_lower).add(position);
+    public Tokenizer(boolean unicode) {
+        this.unicode = unicode;
+    }
+
+    /**
+     * Tokenizes the text of a reader. {@link #reset()} must be called before the first token.
+     * @param reader the text; it is not closed
+     * @param lines whether line breaks end a line, as in a document, or are separators like any other, as in a query
+     */
+    public void setReader(Reader reader, boolean lines) {
+        this.reader = reader;
+        this.lines = lines;
+        offset = 0;
+        limit = 0;
+        exhausted = false;
+    }
+
+    /**
+     * Tokenizes a query: a single line of text. {@link #reset()} must be called before the first token.
+     * @param text the query
+     */
+    public void setText(CharSequence text) {
+        reader = null;
+        lines = false;
+        if (text.length() > chunk.length) {
+            chunk = new char[text.length()];
+        }
+        if (text instanceof String) {
+            ((String) text).getChars(0, text.length(), chunk, 0);
+        } else {
+            for (int i = 0; i < text.length(); i++) {
+                chunk[i] = text.charAt(i);
+            }
+        }
+        offset = 0;
+        limit = text.length();
+        exhausted = true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        finished = false;
+        in_word = false;
+        line_length = 0;
+        line_has_word = false;
+        skip_line_feed = false;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        while (true) {
+            if (offset == limit && !fill()) {
+                return finish();
+            }
+            char c = chunk[offset];
+            if (lines) {
+                if (skip_line_feed) {
+                    skip_line_feed = false;
+                    if (c == '\n') {
+                        offset++;
+                        continue;
+                    }
+                }
+                if (c == '\n' || c == '\r') {
+                    offset++;
+                    skip_line_feed = c == '\r';
+                    if (endLine()) {
+                        return true;
+                    }
+                    continue;
+                }
+            }
+
+            if (isWordCharacter(c)) {
+                if (!in_word) {
+                    if (line_length > 0 && leading_separator && !line_has_word) {
+                        // split puts an empty string before the first word, c is read again by the next call
+                        line_has_word = true;
+                        return emit(0);
+                    }
+                    if (line_length == 0) {
+                        leading_separator = false;
                     }
+                    line_has_word = true;
+                    in_word = true;
+                    setLength(0);
+                }
+                int length = length();
+                resizeBuffer(length + 1)[length] = c;
+                setLength(length + 1);
+            } else {
+                if (line_length == 0) {
+                    leading_separator = true;
+                }
+                if (in_word) {
+                    in_word = false;
+                    line_length++;
+                    offset++;
+                    return emit(length());
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            line_length++;
+            offset++;
         }
-        return tokens;
     }
 
-    /**
-
-     Tokenizes the given query by splitting it into words and removing any stop words. Stop words are determined by the
-     stopWords list, which is a list of common words that typically do not contribute to the meaning of a query. The resulting
-     list of tokens is returned.
-     @param query the query string to tokenize
-     @return a list of tokens extracted from the query string, with stop words removed
+    /*
+        Opens a document for reading in the platform's default charset, replacing malformed input
+        rather than failing on it.
      */
-    protected  static List<String> tokenizeQuery(String query) {
-        List<String> tokens = new ArrayList<>();
-        String[] words = query.split("\\W+"); // split by non-word characters
-        for (String word : words) {
-            String word_lower = word.toLowerCase();
-            if (!stopWords.contains(word_lower)) { // check whether the word is in the stopWords list
-                tokens.add(word_lower);
-            }
+    static Reader newReader(File file) throws IOException {
+        CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        return Channels.newReader(FileChannel.open(file.toPath()), decoder, BUFFER_SIZE);
+    }
+
+    private boolean isWordCharacter(char c) {
+        if (c < 0x80 || !unicode) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+        }
+        switch (Character.getType(c)) {
+            case Character.NON_SPACING_MARK:
+            case Character.ENCLOSING_MARK:
+            case Character.COMBINING_SPACING_MARK:
+            case Character.CONNECTOR_PUNCTUATION:
+                return true;
+            default:
+                return Character.isLetterOrDigit(c);
         }
-        return tokens;
     }
-}
 
+    // Reads the next chunk, false at the end of the text
+    private boolean fill() throws IOException {
+        if (exhausted) {
+            return false;
+        }
+        int read;
+        do {
+            read = reader.read(chunk, 0, chunk.length);
+        } while (read == 0);
+        if (read < 0) {
+            exhausted = true;
+            return false;
+        }
+        offset = 0;
+        limit = read;
+        return true;
+    }
+
+    private boolean finish() {
+        if (finished) {
+            return false;
+        }
+        finished = true;
+        // a document ending in a line break has no further line, a query is always one line
+        return (line_length > 0 || !lines) && endLine();
+    }
+
+    // Ends the current line, true if that completes a token
+    private boolean endLine() {
+        boolean token;
+        if (in_word) {
+            in_word = false;
+            token = emit(length());
+        } else {
+            token = line_length == 0 && emit(0); // split turns an empty line into a single empty string
+        }
+        line_length = 0;
+        line_has_word = false;
+        return token;
+    }
+
+    private boolean emit(int length) {
+        setLength(length);
+        setPositionIncrement(1);
+        return true;
+    }
+}
@@ -0,0 +1,60 @@
+package search;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The highest ranked documents of a query, with the scores they were ranked by and statistics about the pruning.
+ */
+public class TopDocs {
+
+    private final List<String> documentIDs;
+    private final double[] scores;
+    private final int scoredDocuments;
+    private final int skippedDocuments;
+    private final long skippedPostings;
+
+    TopDocs(List<String> documentIDs, double[] scores, int scoredDocuments, int skippedDocuments, long skippedPostings) {
+        this.documentIDs = Collections.unmodifiableList(documentIDs);
+        this.scores = scores;
+        this.scoredDocuments = scoredDocuments;
+        this.skippedDocuments = skippedDocuments;
+        this.skippedPostings = skippedPostings;
+    }
+
+    /**
+     * @return the document IDs in descending order of relevance, an unmodifiable list
+     */
+    public List<String> getDocumentIDs() {
+        return documentIDs;
+    }
+
+    /**
+     * @param rank the position of a document in {@link #getDocumentIDs()}
+     * @return the relevance score of the document at that position
+     */
+    public double getScore(int rank) {
+        return scores[rank];
+    }
+
+    /**
+     * @return the number of documents whose full score was computed
+     */
+    public int getScoredDocuments() {
+        return scoredDocuments;
+    }
+
+    /**
+     * @return the number of documents that contain a query term but were not scored because they could not make it into the top k
+     */
+    public int getSkippedDocuments() {
+        return skippedDocuments;
+    }
+
+    /**
+     * @return the number of posting entries that were skipped because their documents could not make it into the top k
+     */
+    public long getSkippedPostings() {
+        return skippedPostings;
+    }
+}
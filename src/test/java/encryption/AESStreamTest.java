@@ -0,0 +1,117 @@
+package encryption;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+    Round trips of the streaming encrypt and decrypt methods, whose PKCS#7 padding is added to the last chunk they read.
+    Streams are read 64 KiB at a time, so the lengths cover an empty stream, a partial block, a whole block, exactly one
+    chunk, which is followed by a chunk that is only padding, and one byte more than a chunk.
+ */
+class AESStreamTest {
+
+    private static final byte[] KEY = "0123456789abcdef".getBytes();
+    private static final int BLOCK_SIZE = 16;
+    private static final int[] LENGTHS = {0, 1, 16, 65536, 65536 + 1};
+
+    private final AES aes = new AES(KEY);
+
+    @Test
+    void streamsRoundTrip() throws Exception {
+        for (int length : LENGTHS) {
+            byte[] plainText = randomBytes(length);
+            byte[] encrypted = encryptStream(plainText);
+            assertEquals((length / BLOCK_SIZE + 1) * BLOCK_SIZE, encrypted.length, "length " + length);
+            assertArrayEquals(plainText, decryptStream(encrypted), "length " + length);
+        }
+    }
+
+    @Test
+    void channelsRoundTrip() throws Exception {
+        for (int length : LENGTHS) {
+            byte[] plainText = randomBytes(length);
+            byte[] encrypted = encryptChannel(plainText);
+            assertArrayEquals(encryptStream(plainText), encrypted, "length " + length);
+            assertArrayEquals(plainText, decryptChannel(encrypted), "length " + length);
+        }
+    }
+
+    @Test
+    void decryptRejectsBadPadding() throws Exception {
+        // the plain text is whole blocks, so leaving out the padding block makes its last block the final one
+        byte[][] lastBlocks = {
+                new byte[BLOCK_SIZE], // a count of 0
+                repeatedBlock(17), // more than a block
+                filledBlock(4, 5) // the count does not match the bytes before it
+        };
+        for (byte[] lastBlock : lastBlocks) {
+            byte[] plainText = Arrays.copyOf(randomBytes(2 * BLOCK_SIZE), 3 * BLOCK_SIZE);
+            System.arraycopy(lastBlock, 0, plainText, 2 * BLOCK_SIZE, BLOCK_SIZE);
+            byte[] encrypted = Arrays.copyOf(encryptStream(plainText), plainText.length);
+            IOException e = assertThrows(IOException.class, () -> decryptStream(encrypted));
+            assertEquals("Invalid padding", e.getMessage());
+            assertThrows(IOException.class, () -> decryptChannel(encrypted));
+        }
+    }
+
+    @Test
+    void decryptRejectsIncompleteData() throws Exception {
+        byte[] encrypted = encryptStream(randomBytes(20));
+        assertThrows(IOException.class, () -> decryptStream(new byte[0]));
+        assertThrows(IOException.class, () -> decryptStream(Arrays.copyOf(encrypted, encrypted.length - 1)));
+        assertThrows(IOException.class, () -> decryptChannel(new byte[0]));
+        assertThrows(IOException.class, () -> decryptChannel(Arrays.copyOf(encrypted, encrypted.length - 1)));
+    }
+
+    private byte[] encryptStream(byte[] plainText) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        aes.encrypt(new ByteArrayInputStream(plainText), out);
+        return out.toByteArray();
+    }
+
+    private byte[] decryptStream(byte[] encrypted) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        aes.decrypt(new ByteArrayInputStream(encrypted), out);
+        return out.toByteArray();
+    }
+
+    private byte[] encryptChannel(byte[] plainText) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        aes.encrypt(Channels.newChannel(new ByteArrayInputStream(plainText)), Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    private byte[] decryptChannel(byte[] encrypted) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        aes.decrypt(Channels.newChannel(new ByteArrayInputStream(encrypted)), Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    // A block whose last byte is count, preceded by count - 1 bytes of the given value
+    private static byte[] filledBlock(int count, int value) {
+        byte[] block = new byte[BLOCK_SIZE];
+        Arrays.fill(block, BLOCK_SIZE - count, BLOCK_SIZE - 1, (byte) value);
+        block[BLOCK_SIZE - 1] = (byte) count;
+        return block;
+    }
+
+    private static byte[] repeatedBlock(int count) {
+        byte[] block = new byte[BLOCK_SIZE];
+        Arrays.fill(block, (byte) count);
+        return block;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
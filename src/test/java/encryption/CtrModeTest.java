@@ -0,0 +1,88 @@
+package encryption;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.AEADBadTagException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+    Round trips of sealed payloads, rejection of tampered ones, and the same output whether or not a payload is
+    split across a pool. Payloads from 4 chunks of 64 KiB on are split, so the lengths cover both sides of that.
+ */
+class CtrModeTest {
+
+    private static final byte[] KEY = "0123456789abcdef".getBytes();
+    private static final int KIB = 1024;
+    private static final int[] LENGTHS = {0, 15, 16, 64 * KIB, 256 * KIB + 1};
+    private static final int[] THRESHOLD_LENGTHS = {256 * KIB - 1, 256 * KIB, 256 * KIB + 1, 1024 * KIB + 7};
+
+    private static ForkJoinPool pool;
+
+    private final CtrMode ctr = new CtrMode(new JavaCipherBackend().init(KEY));
+
+    @BeforeAll
+    static void startPool() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterAll
+    static void stopPool() {
+        pool.shutdown();
+    }
+
+    @Test
+    void openReturnsThePlainText() throws Exception {
+        for (int length : LENGTHS) {
+            byte[] plainText = randomBytes(length);
+            byte[] sealed = ctr.seal(plainText, null);
+            assertEquals(CtrMode.NONCE_SIZE + length + CtrMode.TAG_SIZE, sealed.length);
+            assertArrayEquals(plainText, ctr.open(sealed, null), "length " + length);
+            assertArrayEquals(plainText, ctr.open(ctr.seal(plainText, pool), pool), "length " + length);
+        }
+    }
+
+    @Test
+    void openRejectsAFlippedBit() throws Exception {
+        for (int length : LENGTHS) {
+            byte[] sealed = ctr.seal(randomBytes(length), null);
+            // the nonce, the cipher text (or the tag of an empty payload) and the tag
+            int[] positions = {0, CtrMode.NONCE_SIZE - 1, CtrMode.NONCE_SIZE + length / 2, sealed.length - 1};
+            for (int position : positions) {
+                byte[] tampered = sealed.clone();
+                tampered[position] ^= 1;
+                assertThrows(AEADBadTagException.class, () -> ctr.open(tampered, null), "length " + length + ", byte " + position);
+                assertThrows(AEADBadTagException.class, () -> ctr.open(tampered, pool), "length " + length + ", byte " + position);
+            }
+        }
+    }
+
+    @Test
+    void openRejectsATruncatedPayload() throws Exception {
+        byte[] sealed = ctr.seal(randomBytes(100), null);
+        assertThrows(AEADBadTagException.class, () -> ctr.open(Arrays.copyOf(sealed, sealed.length - 1), null));
+        assertThrows(AEADBadTagException.class, () -> ctr.open(Arrays.copyOf(sealed, CtrMode.NONCE_SIZE + CtrMode.TAG_SIZE - 1), null));
+    }
+
+    @Test
+    void sealIsTheSameWithAndWithoutAPool() throws Exception {
+        byte[] nonce = randomBytes(CtrMode.NONCE_SIZE);
+        for (int length : THRESHOLD_LENGTHS) {
+            byte[] plainText = randomBytes(length);
+            byte[] sealed = ctr.seal(nonce, plainText, null);
+            assertArrayEquals(sealed, ctr.seal(nonce, plainText, pool), "length " + length);
+            assertArrayEquals(plainText, ctr.open(sealed, pool), "length " + length);
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,172 @@
+package search;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+    Writers add, update and delete documents with overlapping IDs while a reader takes snapshots and opens Searches.
+    The work runs in rounds: within a round every ID gets one operation, which any number of writers may apply, and those
+    operations are idempotent, so the index after each round is the same whatever the interleaving. The result must equal
+    the index that applying every operation once, sequentially, builds.
+ */
+class InvertedIndexConcurrencyTest {
+
+    private static final byte[] KEY = "0123456789abcdef".getBytes();
+    private static final int N = 3;
+    private static final int WRITERS = 4;
+    private static final int DOCUMENTS = 16;
+    private static final int FILES = 24;
+    private static final int ROUNDS = 12;
+    private static final String[] WORDS = {"encrypted", "search", "index", "document", "query", "proximity", "score",
+            "cipher", "block", "posting", "segment", "merge", "token", "analyzer", "snapshot", "version", "cache", "ranking"};
+    private static final List<String> QUERIES = List.of("encrypted search", "posting segment merge", "query proximity score",
+            "cipher block", "snapshot version cache", "ranking");
+
+    private enum Operation { ADD, UPDATE, DELETE }
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void concurrentWritersMatchSequentialRun() throws Exception {
+        Logger.getLogger(InvertedIndex.class.getName()).setLevel(Level.WARNING);
+        Random random = new Random(42);
+        File[] files = writeFiles(random);
+
+        // rounds[r][d]: the operation on document d in round r and the file it uses
+        Operation[][] operations = new Operation[ROUNDS][DOCUMENTS];
+        File[][] contents = new File[ROUNDS][DOCUMENTS];
+        for (int r = 0; r < ROUNDS; r++) {
+            for (int d = 0; d < DOCUMENTS; d++) {
+                operations[r][d] = Operation.values()[random.nextInt(3)];
+                contents[r][d] = files[random.nextInt(FILES)];
+            }
+        }
+
+        InvertedIndex sequential = new InvertedIndex(KEY);
+        for (int r = 0; r < ROUNDS; r++) {
+            for (int d = 0; d < DOCUMENTS; d++) {
+                apply(sequential, operations[r][d], "doc" + d, contents[r][d]);
+            }
+        }
+
+        // every operation goes to one writer and possibly to others as well, in a different order for every writer
+        List<List<List<Integer>>> plans = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            List<List<Integer>> rounds = new ArrayList<>();
+            for (int r = 0; r < ROUNDS; r++) {
+                rounds.add(new ArrayList<>());
+            }
+            plans.add(rounds);
+        }
+        for (int r = 0; r < ROUNDS; r++) {
+            for (int d = 0; d < DOCUMENTS; d++) {
+                for (int w = 0; w < WRITERS; w++) {
+                    if (w == d % WRITERS || random.nextInt(2) == 0) {
+                        plans.get(w).get(r).add(d);
+                    }
+                }
+            }
+            for (int w = 0; w < WRITERS; w++) {
+                Collections.shuffle(plans.get(w).get(r), random);
+            }
+        }
+
+        InvertedIndex concurrent = new InvertedIndex(KEY);
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + 1);
+        CyclicBarrier barrier = new CyclicBarrier(WRITERS);
+        AtomicBoolean done = new AtomicBoolean();
+        try {
+            Future<Integer> reader = executor.submit(() -> {
+                int snapshots = 0;
+                while (!done.get()) {
+                    for (Map<IndexKey, PostingList> documents : concurrent.snapshot().values()) {
+                        assertFalse(documents.isEmpty(), "a snapshot holds a term without documents");
+                    }
+                    Search search = concurrent.newSearch();
+                    for (String query : QUERIES) {
+                        search.search(query, N);
+                    }
+                    snapshots++;
+                }
+                return snapshots;
+            });
+            List<Future<?>> writers = new ArrayList<>();
+            for (List<List<Integer>> plan : plans) {
+                writers.add(executor.submit(() -> {
+                    for (int r = 0; r < ROUNDS; r++) {
+                        for (int d : plan.get(r)) {
+                            apply(concurrent, operations[r][d], "doc" + d, contents[r][d]);
+                        }
+                        barrier.await();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get(1, TimeUnit.MINUTES);
+            }
+            done.set(true);
+            assertTrue(reader.get(1, TimeUnit.MINUTES) > 0);
+        } finally {
+            done.set(true);
+            executor.shutdownNow();
+        }
+
+        assertEquals(sequential.snapshot(), concurrent.snapshot());
+        assertEquals(sequential.getDocumentCount(), concurrent.getDocumentCount());
+        Search expected = sequential.newSearch();
+        Search actual = concurrent.newSearch();
+        for (String query : QUERIES) {
+            assertEquals(scores(expected, query), scores(actual, query), query);
+        }
+    }
+
+    private File[] writeFiles(Random random) throws Exception {
+        File[] files = new File[FILES];
+        for (int f = 0; f < FILES; f++) {
+            StringBuilder text = new StringBuilder();
+            int words = 20 + random.nextInt(200);
+            for (int w = 0; w < words; w++) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(w % 12 == 11 ? '\n' : ' ');
+            }
+            files[f] = Files.writeString(directory.resolve("file" + f + ".txt"), text).toFile();
+        }
+        return files;
+    }
+
+    private static void apply(InvertedIndex index, Operation operation, String documentID, File file) throws Exception {
+        switch (operation) {
+            case ADD:
+                index.add(documentID, file, N);
+                break;
+            case UPDATE:
+                index.update(documentID, file, N);
+                break;
+            case DELETE:
+                index.delete(documentID);
+                break;
+        }
+    }
+
+    // Document ID -> score of every matching document; the order of tied documents depends on the ordinals
+    private static Map<String, Double> scores(Search search, String query) {
+        TopDocs topDocs = search.searchTopDocs(query, N, DOCUMENTS);
+        Map<String, Double> scores = new HashMap<>();
+        for (int i = 0; i < topDocs.getDocumentIDs().size(); i++) {
+            scores.put(topDocs.getDocumentIDs().get(i), topDocs.getScore(i));
+        }
+        return scores;
+    }
+}
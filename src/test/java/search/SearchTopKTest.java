@@ -0,0 +1,95 @@
+package search;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+    The top k of a query, found with WAND pruning, must be the first k documents of the full ranking, with ties in index
+    order. Many documents share their content, so that there are ties, and the queries repeat terms and have up to
+    seven words, so that the proximity bound covers many term pairs. Caching is off, so that every search is scored.
+ */
+class SearchTopKTest {
+
+    private static final byte[] KEY = "0123456789abcdef".getBytes();
+    private static final int N = 3;
+    private static final int DOCUMENTS = 200;
+    private static final int FILES = 40;
+    private static final int[] KS = {1, 2, 3, 5, 10, 50, DOCUMENTS};
+    private static final String[] WORDS = {"encrypted", "search", "index", "document", "query", "proximity", "score",
+            "cipher", "block", "posting", "segment", "merge", "token", "analyzer", "snapshot", "version", "cache", "ranking",
+            "a", "of", "to", "in", "on", "by", "an", "or"};
+    private static final List<String> QUERIES = List.of("encrypted", "encrypted search", "posting segment merge",
+            "query proximity score", "cipher block cipher", "snapshot version cache ranking",
+            "encrypted search index document query proximity score", "analyzer token analyzer token");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void topKIsPrefixOfFullRanking() throws Exception {
+        assertTopKIsPrefix(buildIndex().newSearch().withParallelism(null, 0));
+    }
+
+    @Test
+    void topKIsPrefixOfFullRankingInPartitions() throws Exception {
+        InvertedIndex index = buildIndex();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            // a threshold of 1 splits every query into partitions
+            assertTopKIsPrefix(index.newSearch().withParallelism(pool, 1));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void assertTopKIsPrefix(Search search) {
+        boolean pruned = false;
+        for (String query : QUERIES) {
+            List<String> ranking = search.search(query, N);
+            assertFalse(ranking.isEmpty(), query);
+            for (int k : KS) {
+                TopDocs topDocs = search.searchTopDocs(query, N, k);
+                List<String> expected = ranking.subList(0, Math.min(k, ranking.size()));
+                assertEquals(expected, topDocs.getDocumentIDs(), query + ", k = " + k);
+                assertEquals(expected, search.search(query, N, k), query + ", k = " + k);
+                for (int i = 1; i < topDocs.getDocumentIDs().size(); i++) {
+                    assertTrue(topDocs.getScore(i - 1) >= topDocs.getScore(i), query + ", k = " + k);
+                }
+                pruned |= topDocs.getSkippedDocuments() > 0;
+            }
+        }
+        assertTrue(pruned, "WAND never skipped a document");
+    }
+
+    private InvertedIndex buildIndex() throws Exception {
+        Logger.getLogger(InvertedIndex.class.getName()).setLevel(Level.WARNING);
+        Random random = new Random(11);
+        File[] files = new File[FILES];
+        for (int f = 0; f < FILES; f++) {
+            StringBuilder text = new StringBuilder();
+            int words = 5 + random.nextInt(f % 4 == 0 ? 400 : 60);
+            for (int w = 0; w < words; w++) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(w % 12 == 11 ? '\n' : ' ');
+            }
+            files[f] = Files.writeString(directory.resolve("file" + f + ".txt"), text).toFile();
+        }
+        InvertedIndex index = new InvertedIndex(KEY);
+        index.setQueryCache(new QueryCache(0, QueryCache.DEFAULT_TIME_TO_LIVE));
+        Map<String, File> documents = new LinkedHashMap<>();
+        for (int d = 0; d < DOCUMENTS; d++) {
+            documents.put("doc" + d, files[random.nextInt(FILES)]);
+        }
+        index.addAll(documents, N);
+        return index;
+    }
+}
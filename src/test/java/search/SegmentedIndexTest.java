@@ -0,0 +1,121 @@
+package search;
+
+import encryption.JavaCipherBackend;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+    Adds, updates and deletes documents in a SegmentedIndex that flushes every few documents, so that deletes hit
+    flushed segments as tombstones and the background merger rewrites segments, and compares its search results with
+    those of a single InvertedIndex holding the same documents: before closing, and after the index is opened again.
+ */
+class SegmentedIndexTest {
+
+    private static final byte[] KEY = "0123456789abcdef".getBytes();
+    private static final int N = 3;
+    private static final int MAX_BUFFERED_DOCUMENTS = 3;
+    private static final int DOCUMENTS = 60;
+    private static final int FILES = 20;
+    private static final int OPERATIONS = 400;
+    private static final String[] WORDS = {"encrypted", "search", "index", "document", "query", "proximity", "score",
+            "cipher", "block", "posting", "segment", "merge", "token", "analyzer", "snapshot", "version", "cache", "ranking"};
+    private static final List<String> QUERIES = List.of("encrypted search", "posting segment merge", "query proximity score",
+            "cipher block", "snapshot version cache", "ranking");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void matchesInvertedIndexAcrossFlushesDeletesAndMerges() throws Exception {
+        Logger.getLogger(SegmentedIndex.class.getName()).setLevel(Level.WARNING);
+        Logger.getLogger(InvertedIndex.class.getName()).setLevel(Level.WARNING);
+        Random random = new Random(7);
+        File[] files = writeFiles(random);
+        Path indexDirectory = directory.resolve("index");
+
+        Map<String, File> expected = new HashMap<>();
+        SegmentedIndex index = new SegmentedIndex(indexDirectory, KEY, new JavaCipherBackend(), MAX_BUFFERED_DOCUMENTS);
+        for (int i = 0; i < OPERATIONS; i++) {
+            String documentID = "doc" + random.nextInt(DOCUMENTS);
+            int operation = random.nextInt(10);
+            if (operation < 6) {
+                File file = files[random.nextInt(FILES)];
+                index.add(documentID, file, N);
+                expected.put(documentID, file);
+            } else if (operation < 8) {
+                File file = files[random.nextInt(FILES)];
+                index.update(documentID, file, N);
+                expected.put(documentID, file);
+            } else {
+                index.delete(documentID);
+                expected.remove(documentID);
+            }
+            if (i % 50 == 49) {
+                index.flush();
+            }
+        }
+
+        InvertedIndex reference = new InvertedIndex(KEY);
+        for (Map.Entry<String, File> document : expected.entrySet()) {
+            reference.add(document.getKey(), document.getValue(), N);
+        }
+        Search search = reference.newSearch();
+        assertSameResults(search, index.newSearch());
+        index.close();
+
+        SegmentedIndex reopened = new SegmentedIndex(indexDirectory, KEY);
+        try {
+            assertSameResults(search, reopened.newSearch());
+            // the flushes wrote over a hundred segments; merging leaves fewer than 10 in each of the two size tiers
+            assertTrue(reopened.getSegmentCount() < 20, "segments were not merged: " + reopened.getSegmentCount());
+            assertEquals(reopened.getSegmentCount(), countSegmentFiles(indexDirectory), "merged segment files were not deleted");
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private File[] writeFiles(Random random) throws Exception {
+        File[] files = new File[FILES];
+        for (int f = 0; f < FILES; f++) {
+            StringBuilder text = new StringBuilder();
+            int words = 20 + random.nextInt(200);
+            for (int w = 0; w < words; w++) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(w % 12 == 11 ? '\n' : ' ');
+            }
+            files[f] = Files.writeString(directory.resolve("file" + f + ".txt"), text).toFile();
+        }
+        return files;
+    }
+
+    private static void assertSameResults(Search expected, Search actual) {
+        for (String query : QUERIES) {
+            assertEquals(scores(expected, query), scores(actual, query), query);
+        }
+    }
+
+    // Document ID -> score of every matching document; the order of tied documents depends on the segments
+    private static Map<String, Double> scores(Search search, String query) {
+        TopDocs topDocs = search.searchTopDocs(query, N, DOCUMENTS);
+        Map<String, Double> scores = new HashMap<>();
+        for (int i = 0; i < topDocs.getDocumentIDs().size(); i++) {
+            scores.put(topDocs.getDocumentIDs().get(i), topDocs.getScore(i));
+        }
+        return scores;
+    }
+
+    private static long countSegmentFiles(Path directory) throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".seg")).count();
+        }
+    }
+}